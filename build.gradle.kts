@@ -5,6 +5,7 @@ plugins {
     id("xyz.jpenilla.run-paper") version "2.3.0"
     id("com.modrinth.minotaur") version "2.+"
     id("com.github.johnrengelman.shadow") version "8.1.1"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "org.battleplugins"
@@ -42,6 +43,11 @@ java {
     withSourcesJar()
 }
 
+// Benchmarks live in src/jmh and are run with ./gradlew jmh
+jmh {
+    jmhVersion = "1.37"
+}
+
 tasks {
     runServer {
         minecraftVersion("1.20.6")
@@ -0,0 +1,93 @@
+package org.battleplugins.tracker.sql;
+
+import org.battleplugins.tracker.util.CoarseClock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading cached values from a {@link DbCache.MapCache},
+ * with access times taken from either the {@link CoarseClock} or
+ * the system clock.
+ * <p>
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DbCacheBenchmark {
+    private static final int SIZE = 1024;
+
+    @Param({"coarse", "system"})
+    public String clock;
+
+    private DbCache.MapCache<UUID, Object> cache;
+    private UUID[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        if (this.clock.equals("coarse")) {
+            CoarseClock.start();
+        } else {
+            CoarseClock.stop();
+        }
+
+        this.cache = DbCache.createMap();
+        this.keys = new UUID[SIZE];
+
+        List<Object> values = new ArrayList<>(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            this.keys[i] = UUID.randomUUID();
+            values.add(this.keys[i]);
+        }
+
+        // Values are their own keys, which is enough to exercise the read path
+        this.cache.loadBulk(CompletableFuture.completedFuture(values), value -> (UUID) value).join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CoarseClock.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+    }
+
+    @Benchmark
+    public long now() {
+        return CoarseClock.now();
+    }
+
+    @Benchmark
+    public Object getCached(Cursor cursor) {
+        return this.cache.getCached(this.keys[cursor.index++ & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object getCachedContended(Cursor cursor) {
+        return this.cache.getCached(this.keys[cursor.index++ & (SIZE - 1)]);
+    }
+}
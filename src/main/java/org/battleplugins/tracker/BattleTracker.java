@@ -7,15 +7,19 @@ import org.battleplugins.tracker.feature.combatlog.CombatLog;
 import org.battleplugins.tracker.feature.damageindicators.DamageIndicators;
 import org.battleplugins.tracker.feature.placeholderapi.PlaceholderApiFeature;
 import org.battleplugins.tracker.message.Messages;
+import org.battleplugins.tracker.sql.SqlExecutor;
 import org.battleplugins.tracker.sql.SqlInstance;
+import org.battleplugins.tracker.stat.Record;
 import org.battleplugins.tracker.stat.calculator.EloCalculator;
 import org.battleplugins.tracker.stat.calculator.RatingCalculator;
+import org.battleplugins.tracker.util.CoarseClock;
 import org.battleplugins.tracker.util.CommandInjector;
 import org.bstats.bukkit.Metrics;
 import org.bukkit.Bukkit;
 import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.entity.Player;
 import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.java.JavaPlugin;
@@ -26,6 +30,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
@@ -81,6 +86,8 @@ public class BattleTracker extends JavaPlugin {
 
     @Override
     public void onEnable() {
+        CoarseClock.start();
+
         Bukkit.getPluginManager().registerEvents(new BattleTrackerListener(this), this);
 
         // Register default calculators
@@ -110,9 +117,24 @@ public class BattleTracker extends JavaPlugin {
                 }
 
                 this.debug("Auto save: Finished saving all trackers.");
+
+                SqlExecutor executor = SqlInstance.getInstance().getExecutor();
+                this.debug("SQL executor: {} queued, {} active, {} rejected, {}ms average wait, {}ms max wait.",
+                        executor.getQueueDepth(), executor.getActiveCount(), executor.getRejectedTasks(),
+                        String.format("%.2f", executor.getAverageWaitTime()), String.format("%.2f", executor.getMaxWaitTime()));
             }, this.config.getAdvanced().saveInterval() * 20L, this.config.getAdvanced().saveInterval() * 20L);
         }
 
+        if (this.config.getAdvanced().writeBehind().enabled()) {
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+                for (Tracker tracker : this.trackers.values()) {
+                    if (tracker instanceof SqlTracker sqlTracker && sqlTracker.getWriteBehindQueue() != null) {
+                        sqlTracker.getWriteBehindQueue().tick();
+                    }
+                }
+            }, 20L, 20L);
+        }
+
         new Metrics(this, PLUGIN_ID);
     }
 
@@ -153,13 +175,20 @@ public class BattleTracker extends JavaPlugin {
 
     @Override
     public void onDisable() {
-        this.disable(true).whenComplete((aVoid, e) -> {
-            if (e != null) {
-                this.error("Error disabling BattleTracker!", e);
-            }
-        });
-
-        SqlInstance.getInstance().close();
+        // The final save can not be retried, so it must not be rejected
+        SqlInstance.getInstance().getExecutor().prepareShutdown();
+        try {
+            this.disable(true).whenComplete((aVoid, e) -> {
+                if (e != null) {
+                    this.error("Error disabling BattleTracker!", e);
+                }
+            });
+        } catch (Exception e) {
+            this.error("Error disabling BattleTracker!", e);
+        } finally {
+            SqlInstance.getInstance().close();
+            CoarseClock.stop();
+        }
     }
 
     private CompletableFuture<Void> disable(boolean block) {
@@ -205,6 +234,20 @@ public class BattleTracker extends JavaPlugin {
 
         this.loadTrackers();
 
+        // Load records for players who are already online, such as after a reload
+        Collection<? extends Player> players = Bukkit.getOnlinePlayers();
+        if (!players.isEmpty()) {
+            for (Tracker tracker : this.trackers.values()) {
+                tracker.getOrCreateRecords(players).whenComplete((records, e) -> {
+                    if (tracker instanceof SqlTracker sqlTracker && records != null) {
+                        for (Record record : records) {
+                            sqlTracker.getRecords().lock(record.getId());
+                        }
+                    }
+                });
+            }
+        }
+
         this.combatLog = this.loadFeature(this.featuresPath.resolve("combat-log.yml"), CombatLog::load);
         this.damageIndicators = this.loadFeature(this.featuresPath.resolve("damage-indicators.yml"), DamageIndicators::load);
     }
@@ -1,9 +1,12 @@
 package org.battleplugins.tracker;
 
 import org.battleplugins.tracker.sql.SqlSerializer;
+import org.battleplugins.tracker.sql.TrackerSqlSerializer;
 import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.ConfigurationSection;
+import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
 import java.util.Locale;
 
 public class BattleTrackerConfig {
@@ -55,7 +58,11 @@ public class BattleTrackerConfig {
             String url,
             String port,
             String user,
-            String password
+            String password,
+            SqlSerializer.UuidFormat uuidFormat,
+            boolean virtualThreads,
+            Pool pool,
+            Sqlite sqlite
     ) {
 
         public static DatabaseOptions load(ConfigurationSection section) {
@@ -66,7 +73,83 @@ public class BattleTrackerConfig {
             String port = section.getString("port");
             String user = section.getString("username");
             String password = section.getString("password");
-            return new DatabaseOptions(type, prefix, db, url, port, user, password);
+            SqlSerializer.UuidFormat uuidFormat = SqlSerializer.UuidFormat.valueOf(section.getString("uuid-format", "string").toUpperCase(Locale.ROOT));
+            boolean virtualThreads = section.getBoolean("virtual-threads", false);
+            Pool pool = Pool.load(section.getConfigurationSection("pool"));
+            Sqlite sqlite = Sqlite.load(section.getConfigurationSection("sqlite"));
+            return new DatabaseOptions(type, prefix, db, url, port, user, password, uuidFormat, virtualThreads, pool, sqlite);
+        }
+    }
+
+    public record Pool(int minIdle, int maxSize, int validationInterval, int statementCacheSize) {
+
+        public static Pool load(@Nullable ConfigurationSection section) {
+            if (section == null) {
+                return new Pool(10, 20, 30, 50);
+            }
+
+            int maxSize = Math.max(1, section.getInt("max-size", 20));
+            int minIdle = Math.max(0, Math.min(maxSize, section.getInt("min-idle", 10)));
+            int validationInterval = Math.max(0, section.getInt("validation-interval", 30));
+            int statementCacheSize = Math.max(0, section.getInt("statement-cache-size", 50));
+            return new Pool(minIdle, maxSize, validationInterval, statementCacheSize);
+        }
+    }
+
+    public record Sqlite(String journalMode, String synchronous, int cacheSize, long mmapSize, String tempStore, int readConnections) {
+
+        public static Sqlite load(@Nullable ConfigurationSection section) {
+            if (section == null) {
+                return new Sqlite("WAL", "NORMAL", 16384, 268435456L, "MEMORY", 1);
+            }
+
+            String journalMode = section.getString("journal-mode", "wal").toUpperCase(Locale.ROOT);
+            String synchronous = section.getString("synchronous", "normal").toUpperCase(Locale.ROOT);
+            int cacheSize = Math.max(0, section.getInt("cache-size", 16384));
+            long mmapSize = Math.max(0, section.getLong("mmap-size", 268435456L));
+            String tempStore = section.getString("temp-store", "memory").toUpperCase(Locale.ROOT);
+            int readConnections = Math.max(0, section.getInt("read-connections", 1));
+            return new Sqlite(journalMode, synchronous, cacheSize, mmapSize, tempStore, readConnections);
+        }
+
+        /**
+         * Returns whether the database is using write-ahead logging.
+         *
+         * @return whether the database is using write-ahead logging
+         */
+        public boolean isWal() {
+            return this.journalMode.equals("WAL");
+        }
+
+        /**
+         * Returns the statement to set the journal mode of the database.
+         * <p>
+         * The journal mode is stored in the database file, so this only
+         * needs to be run once when the database is opened, rather than
+         * on each new connection.
+         *
+         * @return the statement to set the journal mode
+         */
+        public String getJournalModePragma() {
+            return "PRAGMA journal_mode = " + this.journalMode;
+        }
+
+        /**
+         * Returns the statements to run when opening a connection
+         * to the database.
+         *
+         * @return the statements to run on each new connection
+         */
+        public List<String> getPragmas() {
+            return List.of(
+                    "PRAGMA synchronous = " + this.synchronous,
+                    // Negative values are in KiB rather than pages
+                    "PRAGMA cache_size = -" + this.cacheSize,
+                    "PRAGMA mmap_size = " + this.mmapSize,
+                    "PRAGMA temp_store = " + this.tempStore,
+                    // With more than one connection, wait on locks rather than failing immediately
+                    "PRAGMA busy_timeout = 5000"
+            );
         }
     }
 
@@ -86,13 +169,93 @@ public class BattleTrackerConfig {
     public record Elo(float defaultElo, float spread) {
     }
 
-    public record Advanced(boolean flushOnLeave, int saveInterval, int staleEntryTime) {
+    public record Advanced(boolean flushOnLeave, int saveInterval, int staleEntryTime, TrackerSqlSerializer.SaveMode saveMode, int placeholderRefreshInterval, WriteBehind writeBehind, CacheLimit cacheLimit, int recentTallyEntries) {
 
         public static Advanced load(ConfigurationSection section) {
             boolean flushOnLeave = section.getBoolean("flush-on-leave");
             int saveInterval = section.getInt("save-interval");
             int staleEntryTime = section.getInt("stale-entry-time");
-            return new Advanced(flushOnLeave, saveInterval, staleEntryTime);
+            TrackerSqlSerializer.SaveMode saveMode;
+            String saveModeName = section.getString("save-mode", "full");
+            try {
+                saveMode = TrackerSqlSerializer.SaveMode.valueOf(saveModeName.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                BattleTracker.getInstance().warn("Unknown save mode {}, defaulting to full.", saveModeName);
+                saveMode = TrackerSqlSerializer.SaveMode.FULL;
+            }
+
+            int placeholderRefreshInterval = Math.max(1, section.getInt("placeholder-refresh-interval", 10));
+            WriteBehind writeBehind = WriteBehind.load(section.getConfigurationSection("write-behind"));
+            CacheLimit cacheLimit = CacheLimit.load(section.getConfigurationSection("cache-limit"));
+            int recentTallyEntries = Math.max(1, section.getInt("recent-tally-entries", 100));
+            return new Advanced(flushOnLeave, saveInterval, staleEntryTime, saveMode, placeholderRefreshInterval, writeBehind, cacheLimit, recentTallyEntries);
+        }
+    }
+
+    public record CacheLimit(int maxEntries, int maxMemory) {
+        // Rough size of a cached entry, used to size structures when limiting by memory
+        private static final int ESTIMATED_ENTRY_SIZE = 256;
+
+        public static CacheLimit load(@Nullable ConfigurationSection section) {
+            if (section == null) {
+                return new CacheLimit(0, 0);
+            }
+
+            int maxEntries = Math.max(0, section.getInt("max-entries"));
+            int maxMemory = Math.max(0, section.getInt("max-memory"));
+            return new CacheLimit(maxEntries, maxMemory);
+        }
+
+        /**
+         * Returns whether the cache is limited in size.
+         *
+         * @return whether the cache is limited
+         */
+        public boolean isLimited() {
+            return this.maxEntries > 0 || this.maxMemory > 0;
+        }
+
+        /**
+         * Returns whether the cache is limited by its estimated
+         * memory usage, rather than the amount of entries.
+         *
+         * @return whether the cache is limited by memory
+         */
+        public boolean isMemoryLimited() {
+            return this.maxMemory > 0;
+        }
+
+        /**
+         * Returns the maximum weight of the cache, in bytes when
+         * limited by memory, otherwise in entries.
+         *
+         * @return the maximum weight of the cache
+         */
+        public long maximumWeight() {
+            return this.isMemoryLimited() ? this.maxMemory * 1024L * 1024L : this.maxEntries;
+        }
+
+        /**
+         * Returns the expected amount of entries in the cache when full.
+         *
+         * @return the expected amount of entries
+         */
+        public int expectedEntries() {
+            return (int) Math.min(Integer.MAX_VALUE, this.isMemoryLimited() ? this.maximumWeight() / ESTIMATED_ENTRY_SIZE : this.maxEntries);
+        }
+    }
+
+    public record WriteBehind(boolean enabled, int batchSize, int maxDelay) {
+
+        public static WriteBehind load(@Nullable ConfigurationSection section) {
+            if (section == null) {
+                return new WriteBehind(true, 50, 10);
+            }
+
+            boolean enabled = section.getBoolean("enabled", true);
+            int batchSize = section.getInt("batch-size", 50);
+            int maxDelay = section.getInt("max-delay", 10);
+            return new WriteBehind(enabled, batchSize, maxDelay);
         }
     }
 }
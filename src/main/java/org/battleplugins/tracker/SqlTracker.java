@@ -6,10 +6,15 @@ import org.battleplugins.tracker.event.TallyRecordEvent;
 import org.battleplugins.tracker.feature.TrackerFeature;
 import org.battleplugins.tracker.sql.DbCache;
 import org.battleplugins.tracker.sql.TrackerSqlSerializer;
+import org.battleplugins.tracker.sql.WriteBehindQueue;
+import org.battleplugins.tracker.stat.Leaderboard;
 import org.battleplugins.tracker.stat.Record;
+import org.battleplugins.tracker.stat.RecordTransaction;
+import org.battleplugins.tracker.stat.StatMap;
 import org.battleplugins.tracker.stat.StatType;
 import org.battleplugins.tracker.stat.TallyContext;
 import org.battleplugins.tracker.stat.TallyEntry;
+import org.battleplugins.tracker.stat.TallyHistory;
 import org.battleplugins.tracker.stat.VersusTally;
 import org.battleplugins.tracker.stat.calculator.RatingCalculator;
 import org.bukkit.OfflinePlayer;
@@ -17,7 +22,11 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.Nullable;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -35,12 +44,28 @@ public class SqlTracker implements Tracker {
     private final List<String> disabledWorlds;
     private final TrackerSqlSerializer sqlSerializer;
 
-    private final DbCache.MapCache<UUID, Record> records = DbCache.createMap();
-    private final DbCache.SetCache<VersusTally> tallies = DbCache.createSet();
-    private final DbCache.MultimapCache<UUID, TallyEntry> tallyEntries = DbCache.createMultimap();
+    // Rough sizes, in bytes, of cached values, used when the cache is limited by memory
+    private static final int RECORD_BASE_SIZE = 160;
+    private static final int TALLY_ENTRY_SIZE = 96;
+
+    // Amount of the highest ranked records kept in each leaderboard
+    private static final int LEADERBOARD_SIZE = 1000;
+
+    private static final Comparator<TallyEntry> TALLY_ENTRY_ORDER = Comparator.comparing(TallyEntry::timestamp);
+
+    private final DbCache.MapCache<UUID, Record> records;
+    private final DbCache.IndexedSetCache<VersusTally.Key, UUID, VersusTally> tallies = DbCache.createIndexedSet(VersusTally::key, tally -> List.of(tally.id1(), tally.id2()));
+    private final DbCache.MultimapCache<UUID, TallyEntry> tallyEntries;
+
+    private final Map<StatType, Leaderboard> leaderboards;
+    private final long staleEntryTime;
+    private final int recentTallyEntries;
 
     private final ClassToInstanceMap<TrackerFeature> features = MutableClassToInstanceMap.create();
 
+    @Nullable
+    private final WriteBehindQueue<UUID> writeBehindQueue;
+
     private long lastTopLoad = 0;
 
     public SqlTracker(BattleTracker battleTracker, String name, RatingCalculator calculator, Set<TrackedDataType> trackedData, List<String> disabledWorlds) {
@@ -59,12 +84,53 @@ public class SqlTracker implements Tracker {
         }
 
         this.sqlSerializer = sqlSerializer;
+
+        this.staleEntryTime = battleTracker.getMainConfig().getAdvanced().staleEntryTime() * 1000L;
+        this.recentTallyEntries = battleTracker.getMainConfig().getAdvanced().recentTallyEntries();
+
+        BattleTrackerConfig.CacheLimit cacheLimit = battleTracker.getMainConfig().getAdvanced().cacheLimit();
+        if (cacheLimit.isLimited()) {
+            boolean memoryLimited = cacheLimit.isMemoryLimited();
+            this.records = DbCache.createMap(cacheLimit.maximumWeight(), cacheLimit.expectedEntries(), record -> memoryLimited ? estimateSize(record) : 1);
+            this.tallyEntries = DbCache.createMultimap(cacheLimit.maximumWeight(), cacheLimit.expectedEntries(), entry -> memoryLimited ? TALLY_ENTRY_SIZE : 1);
+        } else {
+            this.records = DbCache.createMap();
+            this.tallyEntries = DbCache.createMultimap();
+        }
+
+        Map<StatType, Leaderboard> leaderboards = new HashMap<>();
+        for (StatType stat : sqlSerializer.getOverallStats()) {
+            leaderboards.put(stat, new Leaderboard(stat, LEADERBOARD_SIZE));
+        }
+
+        this.leaderboards = Map.copyOf(leaderboards);
+        this.sqlSerializer.loadLeaderboards(this.leaderboards.values(), LEADERBOARD_SIZE);
+
+        BattleTrackerConfig.WriteBehind writeBehind = battleTracker.getMainConfig().getAdvanced().writeBehind();
+        if (writeBehind.enabled()) {
+            this.writeBehindQueue = new WriteBehindQueue<>(
+                    name,
+                    writeBehind.batchSize(),
+                    writeBehind.maxDelay() * 1000L,
+                    uuids -> this.sqlSerializer.saveTotals(uuids.toArray(UUID[]::new))
+            );
+
+            this.records.setDirtyListener(this.writeBehindQueue::enqueue);
+            this.tallyEntries.setDirtyListener(this.writeBehindQueue::enqueue);
+        } else {
+            this.writeBehindQueue = null;
+        }
     }
 
     protected TrackerSqlSerializer createSerializer() {
         return new TrackerSqlSerializer(this);
     }
 
+    private static long estimateSize(Record record) {
+        String name = record.getName();
+        return RECORD_BASE_SIZE + (name == null ? 0 : 2L * name.length()) + 8L * record.getStatistics().size();
+    }
+
     @Override
     public String getName() {
         return this.name;
@@ -74,9 +140,20 @@ public class SqlTracker implements Tracker {
         return this.records;
     }
 
+    /**
+     * Returns the write-behind queue for this tracker, or null
+     * if write-behind is disabled.
+     *
+     * @return the write-behind queue for this tracker
+     */
+    @Nullable
+    public WriteBehindQueue<UUID> getWriteBehindQueue() {
+        return this.writeBehindQueue;
+    }
+
     @Override
     public CompletableFuture<@Nullable Record> getRecord(OfflinePlayer player) {
-        return this.records.getOrLoad(player.getUniqueId(), this.sqlSerializer.loadRecord(player.getUniqueId())).exceptionally(e -> {
+        return this.records.getOrLoad(player.getUniqueId(), this.sqlSerializer::loadRecord).exceptionally(e -> {
             this.battleTracker.error("Failed to load record for {}", player.getUniqueId(), e);
             return null;
         });
@@ -84,7 +161,44 @@ public class SqlTracker implements Tracker {
 
     @Override
     public CompletableFuture<List<Record>> getTopRecords(int limit, StatType orderBy) {
-        // Recompute this every minute
+        // Leaderboards only hold the highest ranked players, so
+        // larger requests are served from the database
+        Leaderboard leaderboard = this.leaderboards.get(orderBy);
+        if (leaderboard != null && limit <= LEADERBOARD_SIZE) {
+            List<UUID> top = leaderboard.getTop(limit);
+            List<UUID> missing = new ArrayList<>();
+            for (UUID uuid : top) {
+                if (this.records.getCached(uuid) == null) {
+                    missing.add(uuid);
+                }
+            }
+
+            // Records which are not cached are loaded in one go, rather than one query each
+            return this.records.loadBulk(this.sqlSerializer.loadRecords(missing), Record::getId).thenApply(loaded -> {
+                Map<UUID, Record> loadedRecords = new HashMap<>();
+                for (Record record : loaded) {
+                    loadedRecords.put(record.getId(), record);
+                }
+
+                List<Record> records = new ArrayList<>(top.size());
+                for (UUID uuid : top) {
+                    // The cache is the source of truth, as it may have been modified since
+                    Record record = this.records.getCached(uuid);
+                    if (record == null) {
+                        record = loadedRecords.get(uuid);
+                    }
+
+                    if (record != null) {
+                        records.add(record);
+                    }
+                }
+
+                return records;
+            });
+        }
+
+        // Stats which are not stored do not have a leaderboard, so
+        // these are recomputed every minute
         if (System.currentTimeMillis() - this.lastTopLoad > 60000) {
             this.lastTopLoad = System.currentTimeMillis();
             return this.records.loadBulk(this.sqlSerializer.getTopRecords(limit, orderBy), Record::getId)
@@ -101,6 +215,11 @@ public class SqlTracker implements Tracker {
         );
     }
 
+    @Override
+    public @Nullable Leaderboard getLeaderboard(StatType stat) {
+        return this.leaderboards.get(stat);
+    }
+
     @Override
     public List<StatType> getAdditionalStats() {
         return List.of();
@@ -120,16 +239,18 @@ public class SqlTracker implements Tracker {
 
     @Override
     public void addRecord(UUID uuid, Record record) {
+        record.markDirty();
         this.records.put(uuid, record);
+        this.updateLeaderboards(record);
     }
 
-    public DbCache.SetCache<VersusTally> getTallies() {
+    public DbCache.IndexedSetCache<VersusTally.Key, UUID, VersusTally> getTallies() {
         return this.tallies;
     }
 
     @Override
     public CompletableFuture<VersusTally> getVersusTally(OfflinePlayer player1, OfflinePlayer player2) {
-        return this.tallies.getOrLoad(tally -> tally.isTallyFor(player1.getUniqueId(), player2.getUniqueId()), this.sqlSerializer.loadVersusTally(player1.getUniqueId(), player2.getUniqueId())
+        return this.tallies.getOrLoad(VersusTally.Key.of(player1.getUniqueId(), player2.getUniqueId()), key -> this.sqlSerializer.loadVersusTally(player1.getUniqueId(), player2.getUniqueId())
                 .exceptionally(e -> {
                     this.battleTracker.error("Failed to load tally entries for {} and {}", player1.getUniqueId(), player2.getUniqueId(), e);
                     return null;
@@ -138,7 +259,7 @@ public class SqlTracker implements Tracker {
 
     @Override
     public VersusTally createNewVersusTally(OfflinePlayer player1, OfflinePlayer player2) {
-        VersusTally versusTally = new VersusTally(this, player1, player2, new HashMap<>());
+        VersusTally versusTally = new VersusTally(this, player1, player2, new StatMap());
         this.tallies.add(versusTally);
         return versusTally;
     }
@@ -157,7 +278,7 @@ public class SqlTracker implements Tracker {
     @Override
     public void modifyTally(VersusTally tally, Consumer<TallyContext> context) {
         context.accept((statType, value) -> {
-            tally.statistics().put(statType, value);
+            tally.setStat(statType, value);
             SqlTracker.this.tallies.modify(tally);
         });
     }
@@ -171,6 +292,11 @@ public class SqlTracker implements Tracker {
         this.tallyEntries.put(entry.id1(), entry);
         this.tallyEntries.put(entry.id2(), entry);
 
+        // Only keep a window of recent entries in memory; older
+        // entries are read from the database by the tally history
+        this.tallyEntries.trim(entry.id1(), this.recentTallyEntries, TALLY_ENTRY_ORDER);
+        this.tallyEntries.trim(entry.id2(), this.recentTallyEntries, TALLY_ENTRY_ORDER);
+
         Record record1 = this.records.getCached(entry.id1());
         Record record2 = this.records.getCached(entry.id2());
         if (record1 == null || record2 == null) {
@@ -183,7 +309,7 @@ public class SqlTracker implements Tracker {
 
     @Override
     public CompletableFuture<List<TallyEntry>> getTallyEntries(UUID uuid, boolean includeLosses) {
-        return this.tallyEntries.getOrLoad(uuid, this.sqlSerializer.loadTallyEntries(uuid)).thenApply(entries -> {
+        return this.tallyEntries.getOrLoad(uuid, key -> this.sqlSerializer.loadTallyEntries(key, null, this.recentTallyEntries)).thenApply(entries -> {
             if (includeLosses) {
                 return entries;
             }
@@ -195,6 +321,31 @@ public class SqlTracker implements Tracker {
         });
     }
 
+    @Override
+    public CompletableFuture<List<TallyEntry>> getVersusTallyEntries(UUID uuid1, UUID uuid2, int limit) {
+        return this.sqlSerializer.loadVersusTallyEntries(uuid1, uuid2, limit).thenApply(loaded -> {
+            // Entries which have not been saved yet are only in the cache
+            Set<TallyEntry> entries = new HashSet<>(loaded);
+            for (TallyEntry entry : this.tallyEntries.getCached(uuid1)) {
+                if (entry.id1().equals(uuid2) || entry.id2().equals(uuid2)) {
+                    entries.add(entry);
+                }
+            }
+
+            List<TallyEntry> sorted = new ArrayList<>(entries);
+            sorted.sort(TALLY_ENTRY_ORDER.reversed());
+            return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+        }).exceptionally(e -> {
+            this.battleTracker.error("Failed to load tally entries for {} and {}", uuid1, uuid2, e);
+            return List.of();
+        });
+    }
+
+    @Override
+    public TallyHistory getTallyHistory(UUID uuid, int pageSize) {
+        return new TallyHistory((before, limit) -> this.sqlSerializer.loadTallyEntries(uuid, before, limit), pageSize);
+    }
+
     @Override
     public void setValue(StatType statType, float value, OfflinePlayer player) {
         this.getOrCreateRecord(player).whenComplete((record, e) -> {
@@ -207,52 +358,58 @@ public class SqlTracker implements Tracker {
     }
 
     @Override
-    public void updateRating(Player killer, Player loser, boolean tie) {
-        Record killerRecord = this.getOrCreateRecord(killer);
-        Record killedRecord = this.getOrCreateRecord(loser);
-        this.calculator.updateRating(killerRecord, killedRecord, tie);
-
-        float killerRating = killerRecord.getRating();
-        float killerMaxRating = killerRecord.getStat(StatType.MAX_RATING);
+    public void onRecordChange(Record record, Collection<StatType> stats) {
+        this.records.markDirty(record.getId());
 
-        this.setValue(StatType.RATING, killerRecord.getRating(), killer);
-        this.setValue(StatType.RATING, killedRecord.getRating(), loser);
-
-        if (killerRating > killerMaxRating) {
-            this.setValue(StatType.MAX_RATING, killerRating, killer);
+        // Records which are not cached or stored, such as those standing in
+        // for mobs, are not players and should not be ranked
+        if (!record.isPersisted() && !this.records.keySet().contains(record.getId())) {
+            return;
         }
 
-        if (tie) {
-            this.incrementValue(StatType.TIES, killer);
-            this.incrementValue(StatType.TIES, loser);
+        for (StatType stat : stats) {
+            Leaderboard leaderboard = this.leaderboards.get(stat);
+            if (leaderboard != null) {
+                leaderboard.update(record.getId(), record.getStat(stat));
+            }
         }
+    }
 
-        this.setValue(StatType.KD_RATIO, killerRecord.getStat(StatType.KILLS) / Math.max(1, killerRecord.getStat(StatType.DEATHS)), killer);
-        this.setValue(StatType.KD_RATIO, killedRecord.getStat(StatType.KILLS) / Math.max(1, killedRecord.getStat(StatType.DEATHS)), loser);
+    @Override
+    public void updateRating(Player killer, Player loser, boolean tie) {
+        Record killerRecord = this.getOrCreateRecord(killer);
+        Record killedRecord = this.getOrCreateRecord(loser);
 
-        float killerKdr = killerRecord.getStat(StatType.KD_RATIO);
-        float killerMaxKdr = killerRecord.getStat(StatType.MAX_KD_RATIO);
+        // Apply every change to the records in hand, notifying
+        // caches and leaderboards once both records are updated
+        try (RecordTransaction killerTransaction = killerRecord.beginTransaction();
+             RecordTransaction killedTransaction = killedRecord.beginTransaction()) {
+            this.calculator.updateRating(killerRecord, killedRecord, tie);
 
-        if (killerKdr > killerMaxKdr) {
-            this.setValue(StatType.MAX_KD_RATIO, killerKdr, killer);
-        }
+            killerTransaction.setMax(StatType.MAX_RATING, killerRecord.getRating());
 
-        this.setValue(StatType.STREAK, 0, loser);
-        this.incrementValue(StatType.STREAK, killer);
+            if (tie) {
+                killerTransaction.incrementValue(StatType.TIES);
+                killedTransaction.incrementValue(StatType.TIES);
+            }
 
-        float killerStreak = killerRecord.getStat(StatType.STREAK);
-        float killerMaxStreak = killerRecord.getStat(StatType.MAX_STREAK);
+            killerTransaction.setValue(StatType.KD_RATIO, killerRecord.getStat(StatType.KILLS) / Math.max(1, killerRecord.getStat(StatType.DEATHS)));
+            killedTransaction.setValue(StatType.KD_RATIO, killedRecord.getStat(StatType.KILLS) / Math.max(1, killedRecord.getStat(StatType.DEATHS)));
 
-        if (killerStreak > killerMaxStreak) {
-            this.setValue(StatType.MAX_STREAK, killerStreak, killer);
+            killerTransaction.setMax(StatType.MAX_KD_RATIO, killerRecord.getStat(StatType.KD_RATIO));
+
+            killedTransaction.setValue(StatType.STREAK, 0);
+            killerTransaction.incrementValue(StatType.STREAK);
+
+            killerTransaction.setMax(StatType.MAX_STREAK, killerRecord.getStat(StatType.STREAK));
         }
     }
 
     @Override
     public Record createNewRecord(OfflinePlayer player) {
-        Map<StatType, Float> columns = new HashMap<>();
-        for (String column : this.sqlSerializer.getOverallColumns()) {
-            columns.put(StatType.get(column), 0f);
+        StatMap columns = new StatMap();
+        for (StatType stat : this.sqlSerializer.getOverallStats()) {
+            columns.putFloat(stat, 0f);
         }
 
         Record record = new Record(this, player.getUniqueId(), player.getName(), columns);
@@ -262,15 +419,63 @@ public class SqlTracker implements Tracker {
     @Override
     public Record createNewRecord(OfflinePlayer player, Record record) {
         record.setRating(this.calculator.getDefaultRating());
+        record.markDirty();
 
         this.records.put(player.getUniqueId(), record);
+        this.updateLeaderboards(record);
         return record;
     }
 
+    @Override
+    public CompletableFuture<List<Record>> getOrCreateRecords(Collection<? extends OfflinePlayer> players) {
+        List<OfflinePlayer> playerList = List.copyOf(players);
+        List<UUID> uncached = playerList.stream()
+                .map(OfflinePlayer::getUniqueId)
+                .filter(uuid -> this.records.getCached(uuid) == null)
+                .toList();
+
+        return this.records.loadBulk(this.sqlSerializer.loadRecords(uncached), Record::getId).thenApply(loaded -> {
+            List<Record> records = new ArrayList<>(playerList.size());
+            for (OfflinePlayer player : playerList) {
+                // The cache is the source of truth, as records may have
+                // been loaded or created while the bulk load was running
+                Record record = this.records.getCached(player.getUniqueId());
+                if (record == null) {
+                    record = this.createNewRecord(player);
+                }
+
+                records.add(record);
+            }
+
+            return records;
+        }).whenComplete((records, e) -> {
+            // No records are created if loading failed, as they would
+            // overwrite the records which could not be loaded when saved
+            if (e != null) {
+                this.battleTracker.error("Failed to load records for {} players", playerList.size(), e);
+            }
+        });
+    }
+
     @Override
     public void removeRecord(OfflinePlayer player) {
+        Record record = this.records.getCached(player.getUniqueId());
+        if (record != null) {
+            record.setPersisted(false);
+        }
+
         this.records.remove(player.getUniqueId());
         this.sqlSerializer.removeRecord(player.getUniqueId());
+
+        for (Leaderboard leaderboard : this.leaderboards.values()) {
+            leaderboard.remove(player.getUniqueId());
+        }
+    }
+
+    private void updateLeaderboards(Record record) {
+        for (Leaderboard leaderboard : this.leaderboards.values()) {
+            leaderboard.update(record.getId(), record.getStat(leaderboard.getStat()));
+        }
     }
 
     @Override
@@ -324,13 +529,20 @@ public class SqlTracker implements Tracker {
 
     @Override
     public void flush(boolean aggressive) {
+        this.tallies.flush(aggressive);
+        if (!aggressive) {
+            // Only visit the entries which have gone stale
+            this.records.flushExpired(this.staleEntryTime);
+            this.tallyEntries.flushExpired(this.staleEntryTime);
+            return;
+        }
+
         for (UUID uuid : this.records.keySet()) {
-            this.records.flush(uuid, aggressive);
+            this.records.flush(uuid, true);
         }
 
-        this.tallies.flush(aggressive);
         for (UUID uuid : this.tallyEntries.keySet()) {
-            this.tallyEntries.flush(uuid, aggressive);
+            this.tallyEntries.flush(uuid, true);
         }
     }
 
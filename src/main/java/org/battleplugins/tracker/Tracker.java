@@ -1,16 +1,21 @@
 package org.battleplugins.tracker;
 
 import org.battleplugins.tracker.feature.TrackerFeature;
+import org.battleplugins.tracker.stat.Leaderboard;
 import org.battleplugins.tracker.stat.Record;
 import org.battleplugins.tracker.stat.StatType;
 import org.battleplugins.tracker.stat.TallyContext;
 import org.battleplugins.tracker.stat.TallyEntry;
+import org.battleplugins.tracker.stat.TallyHistory;
 import org.battleplugins.tracker.stat.VersusTally;
 import org.battleplugins.tracker.stat.calculator.RatingCalculator;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -48,6 +53,22 @@ public interface Tracker {
      */
     CompletableFuture<List<Record>> getTopRecords(int limit, StatType orderBy);
 
+    /**
+     * Returns the leaderboard for the specified stat type.
+     * <p>
+     * Leaderboards are only kept for stats which are stored
+     * by this tracker. They may only hold a limited amount of
+     * the highest ranked players, so players ranked below that
+     * are not on the leaderboard.
+     *
+     * @param stat the stat type to get the leaderboard for
+     * @return the leaderboard for the specified stat type, or null if there is none
+     */
+    @Nullable
+    default Leaderboard getLeaderboard(StatType stat) {
+        return null;
+    }
+
     /**
      * Returns additional stats that are tracked by this tracker. These are
      * typically populated by third party trackers that wish to track stats
@@ -116,7 +137,10 @@ public interface Tracker {
     void recordTallyEntry(TallyEntry entry);
 
     /**
-     * Returns a list of tally entries for the given player.
+     * Returns a list of the most recent tally entries for the given player.
+     * <p>
+     * Only a limited amount of recent entries are returned. Use
+     * {@link #getTallyHistory(UUID, int)} to read the full history.
      *
      * @param uuid the UUID of the player to get the tally entries for
      * @param includeLosses if losses should be included in the returned list
@@ -124,6 +148,57 @@ public interface Tracker {
      */
     CompletableFuture<List<TallyEntry>> getTallyEntries(UUID uuid, boolean includeLosses);
 
+    /**
+     * Returns the most recent tally entries between the two given
+     * players, ordered from the most recent.
+     * <p>
+     * By default, this only searches the entries returned by
+     * {@link #getTallyEntries(UUID, boolean)} for the first player.
+     *
+     * @param uuid1 the UUID of the first player
+     * @param uuid2 the UUID of the second player
+     * @param limit the maximum amount of entries to return
+     * @return the most recent tally entries between the two players
+     */
+    default CompletableFuture<List<TallyEntry>> getVersusTallyEntries(UUID uuid1, UUID uuid2, int limit) {
+        return this.getTallyEntries(uuid1, true).thenApply(entries -> {
+            List<TallyEntry> versusEntries = new ArrayList<>();
+            for (TallyEntry entry : entries) {
+                if ((entry.id1().equals(uuid1) && entry.id2().equals(uuid2)) || (entry.id1().equals(uuid2) && entry.id2().equals(uuid1))) {
+                    versusEntries.add(entry);
+                }
+            }
+
+            versusEntries.sort(Comparator.comparing(TallyEntry::timestamp).reversed());
+            return versusEntries.size() > limit ? versusEntries.subList(0, limit) : versusEntries;
+        });
+    }
+
+    /**
+     * Returns the full history of tally entries for the given
+     * player, which is fetched a page at a time.
+     * <p>
+     * By default, the history only includes the entries returned
+     * by {@link #getTallyEntries(UUID, boolean)}.
+     *
+     * @param uuid the UUID of the player to get the tally history for
+     * @param pageSize the amount of entries in each page
+     * @return the tally history for the given player
+     */
+    default TallyHistory getTallyHistory(UUID uuid, int pageSize) {
+        return new TallyHistory((before, limit) -> this.getTallyEntries(uuid, true).thenApply(entries -> {
+            List<TallyEntry> page = new ArrayList<>();
+            for (TallyEntry entry : entries) {
+                if (before == null || !entry.timestamp().isAfter(before)) {
+                    page.add(entry);
+                }
+            }
+
+            page.sort(Comparator.comparing(TallyEntry::timestamp).reversed());
+            return page.size() > limit ? page.subList(0, limit) : page;
+        }), pageSize);
+    }
+
     /**
      * Increments a value with the given stat type.
      *
@@ -163,6 +238,16 @@ public interface Tracker {
      */
     void setValue(StatType statType, float value, OfflinePlayer player);
 
+    /**
+     * Called when one or more stats of a {@link Record} belonging
+     * to this tracker have changed.
+     *
+     * @param record the record that changed
+     * @param stats the stats that changed
+     */
+    default void onRecordChange(Record record, Collection<StatType> stats) {
+    }
+
     /**
      * Sets the rating for the specified players.
      *
@@ -251,6 +336,28 @@ public interface Tracker {
         return record;
     }
 
+    /**
+     * Returns the records for all the given players, creating
+     * new ones for players who do not have a record.
+     * <p>
+     * This should be preferred over calling {@link #getOrCreateRecord(OfflinePlayer)}
+     * for each player when loading many players at once, as
+     * implementations may load the records in bulk.
+     *
+     * @param players the players to get/create the records for
+     * @return the records for the given players, completing exceptionally
+     *         if the existing records could not be loaded
+     */
+    default CompletableFuture<List<Record>> getOrCreateRecords(Collection<? extends OfflinePlayer> players) {
+        List<CompletableFuture<Record>> futures = new ArrayList<>(players.size());
+        for (OfflinePlayer player : players) {
+            futures.add(this.getOrCreateRecord(player));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+                .thenApply(v -> futures.stream().map(CompletableFuture::join).toList());
+    }
+
     /**
      * Removes the record for the specified player.
      *
@@ -336,10 +336,12 @@ public class TrackerExecutor implements TabExecutor {
 
         Messages.send(sender, "versus-compare", replacements);
 
-        CompletableFuture<List<TallyEntry>> future = this.tracker.getTallyEntries(player1.getUniqueId(), true);
+        // Query the entries between the two players directly, as their
+        // matches may be older than either player's recent entries
+        CompletableFuture<List<TallyEntry>> future = this.tracker.getVersusTallyEntries(player1.getUniqueId(), player2.getUniqueId(), 5);
         future.whenComplete((entries, e) -> {
             if (e != null) {
-                BattleTracker.getInstance().error("Failed to get tally entries for {}", player1.getName(), e);
+                BattleTracker.getInstance().error("Failed to get tally entries for {} and {}", player1.getName(), player2.getName(), e);
                 return;
             }
 
@@ -353,31 +355,23 @@ public class TrackerExecutor implements TabExecutor {
 
             Messages.send(sender, "versus-history");
 
-            // Sort entries by most recent
-            entries.stream()
-                    .filter(entry -> {
-                        // Ensure the entries are against the same two players
-                        return (entry.id1().equals(player1.getUniqueId()) && entry.id2().equals(player2.getUniqueId())) ||
-                                (entry.id1().equals(player2.getUniqueId()) && entry.id2().equals(player1.getUniqueId()));
-                    })
-                    .sorted((e1, e2) -> e2.timestamp().compareTo(e1.timestamp()))
-                    .limit(5) // Limit to top 5
-                    .forEach(entry -> {
-                        // If the player is the first player, they won
-                        if (entry.id1().equals(player1.getUniqueId())) {
-                            Messages.send(sender, "versus-history-entry-win", Map.of(
-                                    "player", player1.getName(),
-                                    "target", player2.getName(),
-                                    "date", formatter.format(entry.timestamp())
-                            ));
-                        } else {
-                            Messages.send(sender, "versus-history-entry-loss", Map.of(
-                                    "player", player1.getName(),
-                                    "target", player2.getName(),
-                                    "date", formatter.format(entry.timestamp())
-                            ));
-                        }
-                    });
+            // Entries are already sorted by most recent
+            entries.forEach(entry -> {
+                // If the player is the first player, they won
+                if (entry.id1().equals(player1.getUniqueId())) {
+                    Messages.send(sender, "versus-history-entry-win", Map.of(
+                            "player", player1.getName(),
+                            "target", player2.getName(),
+                            "date", formatter.format(entry.timestamp())
+                    ));
+                } else {
+                    Messages.send(sender, "versus-history-entry-loss", Map.of(
+                            "player", player1.getName(),
+                            "target", player2.getName(),
+                            "date", formatter.format(entry.timestamp())
+                    ));
+                }
+            });
         });
     }
 
@@ -27,7 +27,6 @@ import org.battleplugins.tracker.Tracker;
 import org.battleplugins.tracker.stat.Record;
 import org.battleplugins.tracker.stat.StatType;
 import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -96,13 +95,13 @@ public class BattleArenaListener implements Listener {
             }
 
             // Ensure records are created for online players
-            for (Player player : Bukkit.getOnlinePlayers()) {
-                tracker.getOrCreateRecord((OfflinePlayer) player).whenComplete((record, e) -> {
-                    if (tracker instanceof SqlTracker sqlTracker) {
-                        sqlTracker.getRecords().lock(player.getUniqueId());
+            tracker.getOrCreateRecords(Bukkit.getOnlinePlayers()).whenComplete((records, e) -> {
+                if (tracker instanceof SqlTracker sqlTracker && records != null) {
+                    for (Record record : records) {
+                        sqlTracker.getRecords().lock(record.getId());
                     }
-                });
-            }
+                }
+            });
         }
     }
 
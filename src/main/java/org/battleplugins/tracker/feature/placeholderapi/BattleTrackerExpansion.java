@@ -10,13 +10,13 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.List;
-
 class BattleTrackerExpansion extends PlaceholderExpansion {
     private final BattleTracker battleTracker;
+    private final LeaderboardSnapshots snapshots;
 
-    public BattleTrackerExpansion(BattleTracker battleTracker) {
+    public BattleTrackerExpansion(BattleTracker battleTracker, LeaderboardSnapshots snapshots) {
         this.battleTracker = battleTracker;
+        this.snapshots = snapshots;
     }
 
     @Override
@@ -63,24 +63,24 @@ class BattleTrackerExpansion extends PlaceholderExpansion {
                     return null; // Not a number at the end of the placeholder
                 }
 
-                List<Record> topRecords = tracker.getTopRecords(place, type).join();
-                if (topRecords.size() < place) {
+                // Read from the latest snapshot, as this may be called on the main thread
+                LeaderboardSnapshots.Entry topEntry = this.snapshots.getEntry(tracker, type, place);
+                if (topEntry == null) {
                     return "";
                 }
 
-                Record topRecord = topRecords.get(place - 1);
                 if (split.length >= 5) {
                     switch (split[split.length - 1]) {
                         case "name" -> {
-                            return topRecord.getName();
+                            return topEntry.name();
                         }
                         case "uuid" -> {
-                            return topRecord.getId().toString();
+                            return topEntry.id().toString();
                         }
                     };
                 }
 
-                return Util.STAT_FORMAT.format(topRecord.getStat(type));
+                return Util.STAT_FORMAT.format(topEntry.value());
             }
         }
 
@@ -0,0 +1,113 @@
+package org.battleplugins.tracker.feature.placeholderapi;
+
+import org.battleplugins.tracker.BattleTracker;
+import org.battleplugins.tracker.Tracker;
+import org.battleplugins.tracker.stat.StatType;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds immutable snapshots of the top records of each tracker, so
+ * placeholders can be resolved without waiting on the database.
+ * <p>
+ * Snapshots are only kept for the leaderboards which have been
+ * requested by a placeholder, and are refreshed asynchronously.
+ */
+class LeaderboardSnapshots {
+    private final BattleTracker battleTracker;
+
+    private final Map<SnapshotKey, Integer> requestedPlaces = new ConcurrentHashMap<>();
+    private final Map<SnapshotKey, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final Set<SnapshotKey> refreshing = ConcurrentHashMap.newKeySet();
+
+    LeaderboardSnapshots(BattleTracker battleTracker) {
+        this.battleTracker = battleTracker;
+    }
+
+    /**
+     * Gets the entry at the given place from the latest snapshot.
+     * <p>
+     * This never waits on a refresh. If the place has not been
+     * requested before, a refresh is started and null is returned
+     * until it completes.
+     *
+     * @param tracker the tracker to get the entry from
+     * @param stat the stat the leaderboard is ordered by
+     * @param place the place of the entry, starting at 1
+     * @return the entry at the given place, or null if there is none
+     */
+    @Nullable
+    public Entry getEntry(Tracker tracker, StatType stat, int place) {
+        SnapshotKey key = new SnapshotKey(tracker.getName(), stat);
+        Integer previousPlace = this.requestedPlaces.get(key);
+        if (previousPlace == null || previousPlace < place) {
+            this.requestedPlaces.merge(key, place, Math::max);
+            this.refresh(tracker, key);
+        }
+
+        Snapshot snapshot = this.snapshots.get(key);
+        if (snapshot == null || snapshot.entries().size() < place) {
+            return null;
+        }
+
+        return snapshot.entries().get(place - 1);
+    }
+
+    /**
+     * Refreshes every requested snapshot.
+     */
+    public void refreshAll() {
+        for (SnapshotKey key : this.requestedPlaces.keySet()) {
+            Tracker tracker = this.battleTracker.getTracker(key.tracker());
+            if (tracker == null) {
+                this.requestedPlaces.remove(key);
+                this.snapshots.remove(key);
+                continue;
+            }
+
+            this.refresh(tracker, key);
+        }
+    }
+
+    private void refresh(Tracker tracker, SnapshotKey key) {
+        if (!this.refreshing.add(key)) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        int limit = this.requestedPlaces.getOrDefault(key, 0);
+        tracker.getTopRecords(limit, key.stat()).whenComplete((records, e) -> {
+            this.refreshing.remove(key);
+            if (e != null) {
+                this.battleTracker.error("Failed to refresh top {} records for tracker {}!", key.stat().getKey(), key.tracker(), e);
+                return;
+            }
+
+            List<Entry> entries = records.stream()
+                    .map(record -> new Entry(record.getId(), record.getName(), record.getStat(key.stat())))
+                    .toList();
+
+            long now = System.currentTimeMillis();
+            Snapshot previous = this.snapshots.put(key, new Snapshot(entries, now));
+            if (previous != null) {
+                this.battleTracker.debug("Placeholders: Refreshed top {} for tracker {} in {}ms (previous snapshot was {}ms old).", key.stat().getKey(), key.tracker(), now - startTime, now - previous.createdAt());
+            } else {
+                this.battleTracker.debug("Placeholders: Loaded top {} for tracker {} in {}ms.", key.stat().getKey(), key.tracker(), now - startTime);
+            }
+        });
+    }
+
+    public record Entry(UUID id, String name, float value) {
+    }
+
+    private record Snapshot(List<Entry> entries, long createdAt) {
+    }
+
+    private record SnapshotKey(String tracker, StatType stat) {
+    }
+}
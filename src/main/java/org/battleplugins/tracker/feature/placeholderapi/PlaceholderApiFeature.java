@@ -3,11 +3,13 @@ package org.battleplugins.tracker.feature.placeholderapi;
 import org.battleplugins.tracker.BattleTracker;
 import org.battleplugins.tracker.feature.Feature;
 import org.bukkit.Bukkit;
+import org.bukkit.scheduler.BukkitTask;
 
 public class PlaceholderApiFeature implements Feature {
     private final boolean enabled;
 
     private BattleTrackerExpansion expansion;
+    private BukkitTask refreshTask;
 
     public PlaceholderApiFeature() {
         this.enabled = Bukkit.getServer().getPluginManager().getPlugin("PlaceholderAPI") != null;
@@ -24,7 +26,12 @@ public class PlaceholderApiFeature implements Feature {
             return;
         }
 
-        this.expansion = new BattleTrackerExpansion(battleTracker);
+        LeaderboardSnapshots snapshots = new LeaderboardSnapshots(battleTracker);
+
+        long refreshInterval = battleTracker.getMainConfig().getAdvanced().placeholderRefreshInterval() * 20L;
+        this.refreshTask = Bukkit.getScheduler().runTaskTimerAsynchronously(battleTracker, snapshots::refreshAll, refreshInterval, refreshInterval);
+
+        this.expansion = new BattleTrackerExpansion(battleTracker, snapshots);
         this.expansion.register();
     }
 
@@ -33,5 +40,9 @@ public class PlaceholderApiFeature implements Feature {
         if (this.expansion != null) {
             this.expansion.unregister();
         }
+
+        if (this.refreshTask != null) {
+            this.refreshTask.cancel();
+        }
     }
 }
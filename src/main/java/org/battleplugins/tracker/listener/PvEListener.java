@@ -8,6 +8,7 @@ import org.battleplugins.tracker.event.TrackerDeathEvent;
 import org.battleplugins.tracker.feature.recap.Recap;
 import org.battleplugins.tracker.feature.recap.RecapEntry;
 import org.battleplugins.tracker.stat.Record;
+import org.battleplugins.tracker.stat.StatMap;
 import org.battleplugins.tracker.stat.StatType;
 import org.battleplugins.tracker.util.Util;
 import org.bukkit.entity.AnimalTamer;
@@ -27,7 +28,6 @@ import org.bukkit.event.entity.PlayerDeathEvent;
 import org.bukkit.inventory.ItemStack;
 
 import java.time.Instant;
-import java.util.HashMap;
 import java.util.Locale;
 import java.util.UUID;
 
@@ -94,7 +94,7 @@ public class PvEListener implements Listener {
             this.tracker.incrementValue(StatType.DEATHS, killed);
         }
 
-        Record record = new Record(this.tracker, UUID.randomUUID(), killerName, new HashMap<>());
+        Record record = new Record(this.tracker, UUID.randomUUID(), killerName, new StatMap());
         record.setRating(this.tracker.getRatingCalculator().getDefaultRating());
         this.tracker.getRatingCalculator().updateRating(record, killerRecord, false);
 
@@ -131,7 +131,7 @@ public class PvEListener implements Listener {
 
         String killerName = PlainTextComponentSerializer.plainText().serialize(Component.translatable(killer.getType()));
 
-        Record record = new Record(this.tracker, UUID.randomUUID(), killerName, new HashMap<>());
+        Record record = new Record(this.tracker, UUID.randomUUID(), killerName, new StatMap());
         record.setRating(this.tracker.getRatingCalculator().getDefaultRating());
         this.tracker.getRatingCalculator().updateRating(killerRecord, record, false);
     }
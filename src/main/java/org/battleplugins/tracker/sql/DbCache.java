@@ -4,12 +4,14 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
 
 /**
  * A cache holding data from a database.
@@ -35,6 +37,41 @@ public interface DbCache {
         return new DbCacheSet<>();
     }
 
+    /**
+     * Creates a new keyed Set cache.
+     * <p>
+     * Values in this cache are indexed by the key returned from
+     * the given key function, allowing for constant time lookups,
+     * modifications and locks.
+     *
+     * @param keyFunction the function to get the key from a value
+     * @param <K> the key of the cache
+     * @param <V> the value of the cache
+     * @return a new keyed Set cache
+     */
+    static <K, V> KeyedSetCache<K, V> createKeyedSet(Function<V, K> keyFunction) {
+        return new DbCacheKeyedSet<>(keyFunction);
+    }
+
+    /**
+     * Creates a new indexed Set cache.
+     * <p>
+     * In addition to the behavior of a keyed Set cache, this cache keeps
+     * a secondary index of modified values, allowing for all modified
+     * values belonging to an index to be saved without visiting the rest
+     * of the cache.
+     *
+     * @param keyFunction the function to get the key from a value
+     * @param indexFunction the function to get the indexes a value belongs to
+     * @param <K> the key of the cache
+     * @param <I> the secondary index of the cache
+     * @param <V> the value of the cache
+     * @return a new indexed Set cache
+     */
+    static <K, I, V> IndexedSetCache<K, I, V> createIndexedSet(Function<V, K> keyFunction, Function<V, Collection<I>> indexFunction) {
+        return new DbCacheIndexedSet<>(keyFunction, indexFunction);
+    }
+
     /**
      * Creates a new Map cache.
      *
@@ -46,6 +83,25 @@ public interface DbCache {
         return new DbCacheMap<>();
     }
 
+    /**
+     * Creates a new Map cache bounded by the total weight of
+     * its values.
+     * <p>
+     * Once the cache exceeds the maximum weight, the entries least
+     * likely to be used again are evicted. Locked entries and entries
+     * with unsaved modifications are never evicted.
+     *
+     * @param maximumWeight the maximum total weight of the values in the cache
+     * @param expectedEntries the expected amount of entries in the cache when full
+     * @param weigher the function to get the weight of a value
+     * @param <K> the key of the cache
+     * @param <V> the value of the cache
+     * @return a new bounded Map cache
+     */
+    static <K, V> MapCache<K, V> createMap(long maximumWeight, int expectedEntries, ToLongFunction<V> weigher) {
+        return new DbCacheMap<>(maximumWeight, expectedEntries, weigher);
+    }
+
     /**
      * Creates a new Multimap cache.
      *
@@ -57,6 +113,25 @@ public interface DbCache {
         return new DbCacheMultimap<>();
     }
 
+    /**
+     * Creates a new Multimap cache bounded by the total weight of
+     * its values.
+     * <p>
+     * Once the cache exceeds the maximum weight, the keys least likely
+     * to be used again are evicted along with all of their values.
+     * Locked keys and keys with unsaved values are never evicted.
+     *
+     * @param maximumWeight the maximum total weight of the values in the cache
+     * @param expectedEntries the expected amount of keys in the cache when full
+     * @param weigher the function to get the weight of a value
+     * @param <K> the key of the cache
+     * @param <V> the value of the cache
+     * @return a new bounded Multimap cache
+     */
+    static <K, V> MultimapCache<K, V> createMultimap(long maximumWeight, int expectedEntries, ToLongFunction<V> weigher) {
+        return new DbCacheMultimap<>(maximumWeight, expectedEntries, weigher);
+    }
+
     interface SetCache<V> extends DbCache {
 
         /**
@@ -132,6 +207,17 @@ public interface DbCache {
          */
         void save(Consumer<V> value);
 
+        /**
+         * Marks a value which failed to save as modified again, so
+         * it is passed to the consumer on the next {@link #save}.
+         * <p>
+         * If the value was removed from the cache since it was saved,
+         * it is added back.
+         *
+         * @param value the value which failed to save
+         */
+        void markUnsaved(V value);
+
         /**
          * Flushes the cache.
          * <p>
@@ -149,6 +235,56 @@ public interface DbCache {
         void flush(boolean all);
     }
 
+    interface KeyedSetCache<K, V> extends SetCache<V> {
+
+        /**
+         * Returns a cached value from the cache immediately.
+         * <p>
+         * This method should be used when the value is expected to be
+         * in the cache. If the value is not in the cache, this method
+         * will return null.
+         *
+         * @param key the key to get the value from
+         * @return the value from the cache, or null if the value is not in the cache
+         */
+        @Nullable
+        V getCached(K key);
+
+        /**
+         * Returns a value from the cache or loads it if it is not in the cache.
+         * <p>
+         * This method should be used when the value is not guaranteed to be
+         * in the cache. If the value is in the cache, this method will
+         * return the value immediately. If the value is not in the cache,
+         * this method will load the value from the database and return it.
+         * <p>
+         * The loader is only called if the value is not in the cache, and
+         * concurrent requests for a key which is already being loaded
+         * share the same load rather than each querying the database.
+         *
+         * @param key the key to get the value from
+         * @param loader the loader to load the value for the key from the database
+         * @return the value from the cache or the value loaded from the database
+         */
+        CompletableFuture<V> getOrLoad(K key, Function<K, CompletableFuture<V>> loader);
+    }
+
+    interface IndexedSetCache<K, I, V> extends KeyedSetCache<K, V> {
+
+        /**
+         * Saves the modified values belonging to the given index.
+         * <p>
+         * The consumer will be called for each value under the given
+         * index that has been modified. Values that have already been
+         * saved, either through another index or through
+         * {@link #save(Consumer)}, will not be passed to the consumer again.
+         *
+         * @param index the index to save the values for
+         * @param value the value to save
+         */
+        void save(I index, Consumer<V> value);
+    }
+
     interface MapBase<K, V, C> extends DbCache {
 
         /**
@@ -214,12 +350,16 @@ public interface DbCache {
          * in the cache. If the value is in the cache, this method will
          * return the value immediately. If the value is not in the cache,
          * this method will load the value from the database and return it.
+         * <p>
+         * The loader is only called if the value is not in the cache, and
+         * concurrent requests for a key which is already being loaded
+         * share the same load rather than each querying the database.
          *
          * @param key the key to get the value from
-         * @param loader the loader to load the value from the database
+         * @param loader the loader to load the value for the key from the database
          * @return the value from the cache or the value loaded from the database
          */
-        CompletableFuture<C> getOrLoad(K key, CompletableFuture<C> loader);
+        CompletableFuture<C> getOrLoad(K key, Function<K, CompletableFuture<C>> loader);
 
         /**
          * Bulk loads data into this cache.
@@ -242,6 +382,19 @@ public interface DbCache {
          */
         void save(K key, Consumer<V> value);
 
+        /**
+         * Marks a value which failed to save as modified again, so
+         * it is passed to the consumer on the next
+         * {@link #save(Object, Consumer)}.
+         * <p>
+         * If the value was removed from the cache since it was saved,
+         * it is added back.
+         *
+         * @param key the key the value is stored under
+         * @param value the value which failed to save
+         */
+        void markUnsaved(K key, V value);
+
         /**
          * Flushes the cache.
          * <p>
@@ -258,9 +411,43 @@ public interface DbCache {
          * @param all whether to flush all entries
          */
         void flush(K key, boolean all);
+
+        /**
+         * Flushes the entries which have not been accessed within
+         * the given stale entry time.
+         * <p>
+         * Entries are indexed by when they were last accessed, so
+         * only the entries which have expired are visited, rather
+         * than every entry in the cache. Locked entries and entries
+         * with unsaved modifications are kept.
+         *
+         * @param staleEntryTime the time, in milliseconds, after which an entry is stale
+         */
+        void flushExpired(long staleEntryTime);
+
+        /**
+         * Sets the listener called whenever a value in the cache
+         * is marked as modified.
+         * <p>
+         * The listener is called with the key of the modified value,
+         * and may be called multiple times for the same key before
+         * it is saved.
+         *
+         * @param listener the listener to call with the modified key
+         */
+        void setDirtyListener(@Nullable Consumer<K> listener);
     }
 
     interface MapCache<K, V> extends MapBase<K, V, V> {
+
+        /**
+         * Marks the value stored under the given key as modified,
+         * meaning it will be passed to the consumer on the next
+         * {@link #save(Object, Consumer)}.
+         *
+         * @param key the key of the modified value
+         */
+        void markDirty(K key);
     }
 
     interface MultimapCache<K, V> extends MapBase<K, V, List<V>> {
@@ -276,5 +463,18 @@ public interface DbCache {
          * @param values the values to store
          */
         void putAll(K key, Collection<V> values);
+
+        /**
+         * Removes the lowest ordered values stored under the given
+         * key until at most the given amount of values remain.
+         * <p>
+         * Values which have not yet been saved are never removed,
+         * so more values may remain than requested.
+         *
+         * @param key the key to trim the values of
+         * @param maxValues the maximum amount of values to keep
+         * @param order the order of the values, lowest first
+         */
+        void trim(K key, int maxValues, Comparator<V> order);
     }
 }
@@ -0,0 +1,59 @@
+package org.battleplugins.tracker.sql;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+class DbCacheIndexedSet<K, I, V> extends DbCacheKeyedSet<K, V> implements DbCache.IndexedSetCache<K, I, V> {
+    private final Map<I, Set<K>> dirtyIndex = new ConcurrentHashMap<>();
+    private final Function<V, Collection<I>> indexFunction;
+
+    public DbCacheIndexedSet(Function<V, K> keyFunction, Function<V, Collection<I>> indexFunction) {
+        super(keyFunction);
+
+        this.indexFunction = indexFunction;
+    }
+
+    @Override
+    public void save(I index, Consumer<V> valueConsumer) {
+        Set<K> keys = this.dirtyIndex.remove(index);
+        if (keys == null) {
+            return;
+        }
+
+        for (K key : keys) {
+            this.save(key, this.getEntry(key), valueConsumer);
+        }
+    }
+
+    @Override
+    void markDirty(K key, DbValue<V> entry) {
+        super.markDirty(key, entry);
+
+        for (I index : this.indexFunction.apply(entry.value)) {
+            this.dirtyIndex.compute(index, (i, keys) -> {
+                if (keys == null) {
+                    keys = ConcurrentHashMap.newKeySet();
+                }
+
+                keys.add(key);
+                return keys;
+            });
+        }
+    }
+
+    @Override
+    void onSave(K key, DbValue<V> entry) {
+        // Remove the key from every other index it belongs to, so it
+        // is not visited again when those indexes are saved
+        for (I index : this.indexFunction.apply(entry.value)) {
+            this.dirtyIndex.computeIfPresent(index, (i, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.battleplugins.tracker.sql;
+
+import org.battleplugins.tracker.BattleTracker;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+class DbCacheKeyedSet<K, V> implements DbCache.KeyedSetCache<K, V> {
+    private final Map<K, DbValue<V>> entries = new ConcurrentHashMap<>();
+    private final Set<K> dirtyKeys = ConcurrentHashMap.newKeySet();
+    private final Function<V, K> keyFunction;
+    private final DbLoads<K, V> loads = new DbLoads<>();
+
+    public DbCacheKeyedSet(Function<V, K> keyFunction) {
+        this.keyFunction = keyFunction;
+    }
+
+    @Override
+    public void add(V value) {
+        K key = this.keyFunction.apply(value);
+        DbValue<V> entry = new DbValue<>(value, true);
+        this.entries.put(key, entry);
+        this.markDirty(key, entry);
+    }
+
+    @Override
+    public void modify(V value) {
+        K key = this.keyFunction.apply(value);
+        DbValue<V> entry = this.entries.get(key);
+        if (entry != null) {
+            this.markDirty(key, entry);
+            entry.resetLastAccess();
+        }
+    }
+
+    @Override
+    public void lock(V value) {
+        DbValue<V> entry = this.entries.get(this.keyFunction.apply(value));
+        if (entry != null) {
+            entry.lock();
+        }
+    }
+
+    @Override
+    public void unlock(V value) {
+        DbValue<V> entry = this.entries.get(this.keyFunction.apply(value));
+        if (entry != null) {
+            entry.unlock();
+        }
+    }
+
+    @Nullable
+    @Override
+    public V getCached(K key) {
+        DbValue<V> entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        entry.resetLastAccess();
+        return entry.value;
+    }
+
+    @Nullable
+    @Override
+    public V getCached(Predicate<V> predicate) {
+        for (DbValue<V> entry : this.entries.values()) {
+            if (predicate.test(entry.value)) {
+                entry.resetLastAccess();
+                return entry.value;
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public CompletableFuture<V> getOrLoad(K key, Function<K, CompletableFuture<V>> loader) {
+        return this.loads.getOrLoad(key, this::getCached, loader, this::cacheLoaded);
+    }
+
+    @Override
+    public CompletableFuture<V> getOrLoad(Predicate<V> predicate, CompletableFuture<V> loader) {
+        V cached = this.getCached(predicate);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return loader.thenApply(this::cacheLoaded);
+    }
+
+    private V cacheLoaded(V value) {
+        if (value == null) {
+            return null;
+        }
+
+        // If the value was added to the cache while we were loading it,
+        // the cached value is the source of truth as it may have been
+        // modified in the meantime
+        DbValue<V> existing = this.entries.putIfAbsent(this.keyFunction.apply(value), new DbValue<>(value, false));
+        return existing == null ? value : existing.value;
+    }
+
+    @Override
+    public void save(Consumer<V> valueConsumer) {
+        for (K key : this.dirtyKeys) {
+            this.save(key, this.entries.get(key), valueConsumer);
+        }
+    }
+
+    @Override
+    public void markUnsaved(V value) {
+        K key = this.keyFunction.apply(value);
+        this.markDirty(key, this.entries.computeIfAbsent(key, k -> new DbValue<>(value, true)));
+    }
+
+    void markDirty(K key, DbValue<V> entry) {
+        entry.dirty = true;
+        this.dirtyKeys.add(key);
+    }
+
+    void save(K key, @Nullable DbValue<V> entry, Consumer<V> valueConsumer) {
+        this.dirtyKeys.remove(key);
+        if (entry == null || !entry.dirty) {
+            return;
+        }
+
+        // Mark the entry as clean before handing it off, so any
+        // modification made while the value is being saved marks
+        // it as dirty again rather than being lost
+        entry.dirty = false;
+        this.onSave(key, entry);
+
+        valueConsumer.accept(entry.value);
+    }
+
+    void onSave(K key, DbValue<V> entry) {
+    }
+
+    @Nullable
+    DbValue<V> getEntry(K key) {
+        return this.entries.get(key);
+    }
+
+    @Override
+    public void flush(boolean all) {
+        long staleEntryTime = DbValue.staleEntryTime();
+        Iterator<DbValue<V>> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            DbValue<V> dbValue = iterator.next();
+            if (!all && !dbValue.shouldFlush(staleEntryTime)) {
+                continue;
+            }
+
+            // If the db value is locked, do not flush
+            if (dbValue.locked) {
+                continue;
+            }
+
+            if (!dbValue.dirty) {
+                iterator.remove();
+            } else {
+                BattleTracker.getInstance().warn("Unsaved DB value found in cache: {}", dbValue.value);
+            }
+        }
+    }
+}
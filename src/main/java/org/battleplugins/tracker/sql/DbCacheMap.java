@@ -1,6 +1,8 @@
 package org.battleplugins.tracker.sql;
 
 import org.battleplugins.tracker.BattleTracker;
+import org.battleplugins.tracker.util.CoarseClock;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.Collection;
 import java.util.Map;
@@ -9,9 +11,30 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.ToLongFunction;
 
 class DbCacheMap<K, V> implements DbCache.MapCache<K, V> {
     private final Map<K, DbValue<V>> entries = new ConcurrentHashMap<>();
+    private final DbLoads<K, V> loads = new DbLoads<>();
+    private final DbExpiryIndex<K> expiryIndex = new DbExpiryIndex<>();
+
+    @Nullable
+    private final DbEvictionPolicy<K> evictionPolicy;
+    @Nullable
+    private final ToLongFunction<V> weigher;
+
+    @Nullable
+    private Consumer<K> dirtyListener;
+
+    DbCacheMap() {
+        this.evictionPolicy = null;
+        this.weigher = null;
+    }
+
+    DbCacheMap(long maximumWeight, int expectedEntries, ToLongFunction<V> weigher) {
+        this.evictionPolicy = new DbEvictionPolicy<>(maximumWeight, expectedEntries, this::evict);
+        this.weigher = weigher;
+    }
 
     @Override
     public Set<K> keySet() {
@@ -21,11 +44,66 @@ class DbCacheMap<K, V> implements DbCache.MapCache<K, V> {
     @Override
     public void put(K key, V value) {
         this.entries.put(key, new DbValue<>(value, true));
+        this.notifyDirty(key);
+        this.recordWrite(key, value);
+    }
+
+    @Override
+    public void markDirty(K key) {
+        // Flags are changed inside the map, so they can not race with an
+        // eviction deciding whether the value can be removed
+        DbValue<V> dbValue = this.entries.computeIfPresent(key, (k, value) -> {
+            value.dirty = true;
+            return value;
+        });
+
+        if (dbValue != null) {
+            this.notifyDirty(key);
+        }
+    }
+
+    @Override
+    public void markUnsaved(K key, V value) {
+        DbValue<V> unsaved = new DbValue<>(value, true);
+        DbValue<V> dbValue = this.entries.compute(key, (k, existing) -> {
+            if (existing == null) {
+                return unsaved;
+            }
+
+            existing.dirty = true;
+            return existing;
+        });
+
+        this.notifyDirty(key);
+
+        // Removed since it was saved, so it was added back
+        if (dbValue == unsaved) {
+            this.recordWrite(key, value);
+        }
+    }
+
+    @Override
+    public void setDirtyListener(@Nullable Consumer<K> listener) {
+        this.dirtyListener = listener;
+    }
+
+    private void notifyDirty(K key) {
+        Consumer<K> listener = this.dirtyListener;
+        if (listener != null) {
+            listener.accept(key);
+        }
     }
 
     @Override
     public void remove(K key) {
-        this.entries.remove(key);
+        if (this.entries.remove(key) == null) {
+            return;
+        }
+
+        this.expiryIndex.remove(key);
+        if (this.evictionPolicy != null) {
+            this.evictionPolicy.recordRemoval(key);
+        }
     }
 
     @Override
@@ -36,21 +114,30 @@ class DbCacheMap<K, V> implements DbCache.MapCache<K, V> {
         }
 
         dbValue.resetLastAccess();
+        this.expiryIndex.touch(key, dbValue.lastAccess);
+        if (this.evictionPolicy != null) {
+            this.evictionPolicy.recordAccess(key);
+        }
+
         return dbValue.value;
     }
 
     @Override
-    public CompletableFuture<V> getOrLoad(K key, CompletableFuture<V> loader) {
-        if (this.entries.containsKey(key)) {
-            return CompletableFuture.completedFuture(this.getCached(key));
-        }
-
-        return loader.thenApply(value -> {
+    public CompletableFuture<V> getOrLoad(K key, Function<K, CompletableFuture<V>> loader) {
+        return this.loads.getOrLoad(key, this::getCached, loader, value -> {
             if (value == null) {
                 return null;
             }
 
-            this.entries.put(key, new DbValue<>(value, false));
+            // If the value was added to the cache while we were loading it,
+            // the cached value is the source of truth as it may have been
+            // modified in the meantime
+            DbValue<V> existing = this.entries.putIfAbsent(key, new DbValue<>(value, false));
+            if (existing != null) {
+                return existing.value;
+            }
+
+            this.recordWrite(key, value);
             return value;
         });
     }
@@ -64,11 +151,9 @@ class DbCacheMap<K, V> implements DbCache.MapCache<K, V> {
                 // If we have this data in our cache already, let's use
                 // the cache as the source of truth, since the data may
                 // have been updated
-                if (this.entries.containsKey(key)) {
-                    continue;
+                if (this.entries.putIfAbsent(key, new DbValue<>(value, false)) == null) {
+                    this.recordWrite(key, value);
                 }
-
-                this.entries.put(key, new DbValue<>(value, false));
             }
 
             return values;
@@ -84,41 +169,94 @@ class DbCacheMap<K, V> implements DbCache.MapCache<K, V> {
         }
 
         if (value.dirty) {
-            valueConsumer.accept(value.value);
+            // Mark the value as clean before handing it off, so any
+            // modification made while it is being saved is not lost
             value.dirty = false;
+            valueConsumer.accept(value.value);
         }
     }
 
     @Override
     public void flush(K key, boolean all) {
+        this.flush(key, all, all ? 0 : DbValue.staleEntryTime());
+    }
+
+    @Override
+    public void flushExpired(long staleEntryTime) {
+        this.expiryIndex.expire(CoarseClock.now(), staleEntryTime, key -> this.flush(key, false, staleEntryTime));
+    }
+
+    private boolean flush(K key, boolean all, long staleEntryTime) {
         DbValue<V> dbValue = this.entries.get(key);
         if (dbValue == null) {
-            this.entries.remove(key);
-            return;
+            this.remove(key);
+            return true;
         }
 
-        if (!all && !dbValue.shouldFlush()) {
-            return;
+        if (!all && !dbValue.shouldFlush(staleEntryTime)) {
+            return false;
         }
 
         // If the db value is locked, do not flush
         if (dbValue.locked) {
-            return;
+            return false;
         }
 
-        if (!dbValue.dirty) {
-            this.entries.remove(key);
-        } else {
+        if (this.removeIfUnused(key)) {
+            return true;
+        }
+
+        if (dbValue.dirty) {
             BattleTracker.getInstance().warn("Unsaved DB value found in cache: {} for key {}", dbValue.value, key);
         }
+
+        return false;
+    }
+
+    private void recordWrite(K key, V value) {
+        this.expiryIndex.touch(key, CoarseClock.now());
+        if (this.evictionPolicy != null && this.weigher != null) {
+            this.evictionPolicy.recordWrite(key, this.weigher.applyAsLong(value));
+        }
+    }
+
+    private boolean evict(K key) {
+        // The eviction policy records the removal itself
+        if (this.entries.computeIfPresent(key, (k, value) -> value.dirty || value.locked ? value : null) != null) {
+            return false;
+        }
+
+        this.expiryIndex.remove(key);
+        return true;
+    }
+
+    /**
+     * Removes the value for the given key, unless it is in use or
+     * has not been saved. The check and removal are done atomically,
+     * so a value modified concurrently is never removed.
+     *
+     * @param key the key to remove the value for
+     * @return whether the key no longer has a value
+     */
+    private boolean removeIfUnused(K key) {
+        if (this.entries.computeIfPresent(key, (k, value) -> value.dirty || value.locked ? value : null) != null) {
+            return false;
+        }
+
+        this.expiryIndex.remove(key);
+        if (this.evictionPolicy != null) {
+            this.evictionPolicy.recordRemoval(key);
+        }
+
+        return true;
     }
 
     @Override
     public void lock(K key) {
-        DbValue<V> dbValue = this.entries.get(key);
-        if (dbValue != null) {
-            dbValue.lock();
-        }
+        this.entries.computeIfPresent(key, (k, value) -> {
+            value.lock();
+            return value;
+        });
     }
 
     @Override
@@ -1,30 +1,58 @@
 package org.battleplugins.tracker.sql;
 
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.MultimapBuilder;
-import com.google.common.collect.Multimaps;
 import org.battleplugins.tracker.BattleTracker;
+import org.battleplugins.tracker.util.CoarseClock;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
-
+import java.util.function.ToLongFunction;
+
+/**
+ * A multimap cache where the values of each key are held in their own
+ * bucket, guarded by the bucket's own lock.
+ * <p>
+ * Writers for different keys never contend with each other. Buckets
+ * are removed from the map once empty, and are marked as removed so
+ * a writer racing with the removal retries with a new bucket instead
+ * of adding to one which is no longer in the map.
+ */
 class DbCacheMultimap<K, V> implements DbCache.MultimapCache<K, V> {
-    private final ListMultimap<K, DbValue<V>> entries = Multimaps.synchronizedListMultimap(
-            MultimapBuilder.hashKeys()
-                    .arrayListValues()
-                    .build()
-    );
+    private final Map<K, Bucket<V>> entries = new ConcurrentHashMap<>();
+
+    private final Set<K> lockedKeys = ConcurrentHashMap.newKeySet();
+    private final Set<K> loadedKeys = ConcurrentHashMap.newKeySet();
+    private final DbLoads<K, List<V>> loads = new DbLoads<>();
+    private final DbExpiryIndex<K> expiryIndex = new DbExpiryIndex<>();
+
+    @Nullable
+    private final DbEvictionPolicy<K> evictionPolicy;
+    @Nullable
+    private final ToLongFunction<V> weigher;
+    private final Map<K, Long> weights = new ConcurrentHashMap<>();
 
-    private final Set<K> lockedKeys = new HashSet<>();
-    private final Set<K> loadedKeys = new HashSet<>();
+    @Nullable
+    private Consumer<K> dirtyListener;
+
+    DbCacheMultimap() {
+        this.evictionPolicy = null;
+        this.weigher = null;
+    }
+
+    DbCacheMultimap(long maximumWeight, int expectedEntries, ToLongFunction<V> weigher) {
+        this.evictionPolicy = new DbEvictionPolicy<>(maximumWeight, expectedEntries, this::evict);
+        this.weigher = weigher;
+    }
 
     @Override
     public Set<K> keySet() {
@@ -33,7 +61,54 @@ class DbCacheMultimap<K, V> implements DbCache.MultimapCache<K, V> {
 
     @Override
     public void put(K key, V value) {
-        this.entries.put(key, new DbValue<>(value, true));
+        this.add(key, List.of(value), true);
+        this.expiryIndex.touch(key, CoarseClock.now());
+
+        Consumer<K> listener = this.dirtyListener;
+        if (listener != null) {
+            listener.accept(key);
+        }
+
+        this.addWeight(key, List.of(value));
+    }
+
+    @Override
+    public void markUnsaved(K key, V value) {
+        boolean added = false;
+        while (true) {
+            Bucket<V> bucket = this.entries.computeIfAbsent(key, k -> new Bucket<>());
+            synchronized (bucket) {
+                if (bucket.removed) {
+                    continue;
+                }
+
+                DbValue<V> dbValue = bucket.get(value);
+                if (dbValue != null) {
+                    dbValue.dirty = true;
+                } else {
+                    bucket.values.add(new DbValue<>(value, true));
+                    added = true;
+                }
+
+                break;
+            }
+        }
+
+        this.expiryIndex.touch(key, CoarseClock.now());
+
+        Consumer<K> listener = this.dirtyListener;
+        if (listener != null) {
+            listener.accept(key);
+        }
+
+        if (added) {
+            this.addWeight(key, List.of(value));
+        }
+    }
+
+    @Override
+    public void setDirtyListener(@Nullable Consumer<K> listener) {
+        this.dirtyListener = listener;
     }
 
     @Override
@@ -48,91 +123,141 @@ class DbCacheMultimap<K, V> implements DbCache.MultimapCache<K, V> {
 
     @Override
     public void remove(K key) {
-        this.entries.removeAll(key);
+        Bucket<V> bucket = this.entries.get(key);
+        if (bucket != null) {
+            synchronized (bucket) {
+                this.removeBucket(key, bucket);
+            }
+        }
+
+        this.expiryIndex.remove(key);
+        if (this.evictionPolicy != null) {
+            this.weights.remove(key);
+            this.evictionPolicy.recordRemoval(key);
+        }
     }
 
     @Override
     public void putAll(K key, Collection<V> values) {
-        values.forEach(value -> this.put(key, value));
+        if (values.isEmpty()) {
+            return;
+        }
+
+        this.add(key, values, true);
+        this.expiryIndex.touch(key, CoarseClock.now());
+
+        Consumer<K> listener = this.dirtyListener;
+        if (listener != null) {
+            listener.accept(key);
+        }
+
+        this.addWeight(key, values);
+    }
+
+    @Override
+    public void trim(K key, int maxValues, Comparator<V> order) {
+        Bucket<V> bucket = this.entries.get(key);
+        if (bucket == null) {
+            return;
+        }
+
+        synchronized (bucket) {
+            int excess = bucket.values.size() - maxValues;
+            if (excess <= 0) {
+                return;
+            }
+
+            List<DbValue<V>> oldest = new ArrayList<>(bucket.values);
+            oldest.sort((v1, v2) -> order.compare(v1.value, v2.value));
+            for (int i = 0; i < oldest.size() && excess > 0; i++) {
+                DbValue<V> dbValue = oldest.get(i);
+                if (!dbValue.dirty) {
+                    bucket.values.remove(dbValue);
+                    excess--;
+                }
+            }
+        }
+
+        this.updateWeight(key);
     }
 
     @NotNull
     @Override
     public List<V> getCached(K key) {
-        if (!this.entries.containsKey(key)) {
+        Bucket<V> bucket = this.entries.get(key);
+        if (bucket == null) {
             return List.of();
         }
 
-        List<DbValue<V>> entries = this.entries.get(key);
-        if (entries.isEmpty()) {
-            return List.of();
+        List<V> cached;
+        synchronized (bucket) {
+            if (bucket.values.isEmpty()) {
+                return List.of();
+            }
+
+            cached = new ArrayList<>(bucket.values.size());
+            for (DbValue<V> entry : bucket.values) {
+                cached.add(entry.value);
+                entry.resetLastAccess();
+            }
         }
 
-        List<V> cached = new ArrayList<>(entries.size());
-        for (DbValue<V> entry : entries) {
-            cached.add(entry.value);
-            entry.resetLastAccess();
+        this.expiryIndex.touch(key, CoarseClock.now());
+        if (this.evictionPolicy != null) {
+            this.evictionPolicy.recordAccess(key);
         }
 
         return cached;
     }
 
     @Override
-    public CompletableFuture<List<V>> getOrLoad(K key, CompletableFuture<List<V>> loader) {
-        if (this.loadedKeys.contains(key)) {
-            return CompletableFuture.completedFuture(this.getCached(key));
-        }
-
-        List<V> cachedAndLoaded = new ArrayList<>();
-        if (this.entries.containsKey(key)) {
-            List<DbValue<V>> cachedData = this.entries.get(key);
-            cachedAndLoaded.addAll(cachedData.stream()
-                    .peek(DbValue::resetLastAccess)
-                    .map(dbValue -> dbValue.value)
-                    .toList());
-        }
-
-        return loader.thenApply(value -> {
+    public CompletableFuture<List<V>> getOrLoad(K key, Function<K, CompletableFuture<List<V>>> loader) {
+        return this.loads.getOrLoad(key, this::getLoaded, loader, value -> {
             if (value == null) {
                 return List.of();
             }
 
-            for (V v : value) {
-                this.entries.put(key, new DbValue<>(v, false));
-            }
+            List<V> cachedAndLoaded = this.getCached(key);
 
+            this.add(key, value, false);
             this.loadedKeys.add(key);
+            this.expiryIndex.touch(key, CoarseClock.now());
+            this.addWeight(key, value);
 
             // If there is cached data, we need to merge the cached data
             // with the loaded data. This will only be called once, so if
             // we take a slight performance hit on load, that's fine, as the
             // data will be cached for future use
             if (!cachedAndLoaded.isEmpty()) {
-                cachedAndLoaded.addAll(value);
-                return cachedAndLoaded;
+                List<V> merged = new ArrayList<>(cachedAndLoaded.size() + value.size());
+                merged.addAll(cachedAndLoaded);
+                merged.addAll(value);
+                return merged;
             }
 
             return value;
         });
     }
 
+    @Nullable
+    private List<V> getLoaded(K key) {
+        return this.loadedKeys.contains(key) ? this.getCached(key) : null;
+    }
+
     @Override
     public CompletableFuture<? extends Collection<List<V>>> loadBulk(CompletableFuture<? extends Collection<List<V>>> loader, Function<List<V>, K> keyFunction) {
         return loader.thenApply(values -> {
             for (List<V> value : values) {
                 K key = keyFunction.apply(value);
-                for (V v : value) {
-                    // If we have this data in our cache already, let's use
-                    // the cache as the source of truth, since the data may
-                    // have been updated
-                    if (this.entries.containsEntry(key, v)) {
-                        continue;
-                    }
 
-                    this.entries.put(key, new DbValue<>(v, false));
-                }
+                // If we have this data in our cache already, let's use
+                // the cache as the source of truth, since the data may
+                // have been updated
+                List<V> added = this.addAbsent(key, value);
 
                 this.loadedKeys.add(key);
+                this.expiryIndex.touch(key, CoarseClock.now());
+                this.addWeight(key, added);
             }
 
             return values;
@@ -141,13 +266,22 @@ class DbCacheMultimap<K, V> implements DbCache.MultimapCache<K, V> {
 
     @Override
     public void save(K key, Consumer<V> valueConsumer) {
-        this.entries.get(key).forEach(dbValue -> {
-            if (dbValue.dirty) {
-                valueConsumer.accept(dbValue.value);
-
-                dbValue.dirty = false;
+        Bucket<V> bucket = this.entries.get(key);
+        if (bucket != null) {
+            // Mark the values as clean while holding the lock, so a value
+            // added while saving is not marked as clean without being saved
+            List<V> dirtyValues = new ArrayList<>();
+            synchronized (bucket) {
+                for (DbValue<V> dbValue : bucket.values) {
+                    if (dbValue.dirty) {
+                        dbValue.dirty = false;
+                        dirtyValues.add(dbValue.value);
+                    }
+                }
             }
-        });
+
+            dirtyValues.forEach(valueConsumer);
+        }
 
         // If this key has never been loaded from the database
         // before, we need to flush the data from the cache as
@@ -160,28 +294,184 @@ class DbCacheMultimap<K, V> implements DbCache.MultimapCache<K, V> {
 
     @Override
     public void flush(K key, boolean all) {
+        this.flush(key, all, all ? 0 : DbValue.staleEntryTime());
+    }
+
+    @Override
+    public void flushExpired(long staleEntryTime) {
+        this.expiryIndex.expire(CoarseClock.now(), staleEntryTime, key -> {
+            this.flush(key, false, staleEntryTime);
+            return !this.entries.containsKey(key);
+        });
+    }
+
+    private void flush(K key, boolean all, long staleEntryTime) {
         this.loadedKeys.remove(key);
+        Bucket<V> bucket = this.entries.get(key);
+        if (bucket == null) {
+            this.expiryIndex.remove(key);
+            return;
+        }
+
+        // If the key is locked, do not flush
+        if (this.lockedKeys.contains(key)) {
+            return;
+        }
+
+        synchronized (bucket) {
+            Iterator<DbValue<V>> iterator = bucket.values.iterator();
+            while (iterator.hasNext()) {
+                DbValue<V> dbValue = iterator.next();
+                if (!all && !dbValue.shouldFlush(staleEntryTime)) {
+                    continue;
+                }
+
+                if (!dbValue.dirty) {
+                    iterator.remove();
+                } else {
+                    BattleTracker.getInstance().warn("Unsaved DB value found in cache: {} for key {}", dbValue.value, key);
+                }
+            }
+
+            if (bucket.values.isEmpty()) {
+                this.removeBucket(key, bucket);
+            }
+        }
+
         if (!this.entries.containsKey(key)) {
+            this.expiryIndex.remove(key);
+        }
+
+        this.updateWeight(key);
+    }
+
+    private void add(K key, Collection<V> values, boolean dirty) {
+        while (true) {
+            Bucket<V> bucket = this.entries.computeIfAbsent(key, k -> new Bucket<>());
+            synchronized (bucket) {
+                // Removed after we got it from the map; try again with a new bucket
+                if (bucket.removed) {
+                    continue;
+                }
+
+                for (V value : values) {
+                    bucket.values.add(new DbValue<>(value, dirty));
+                }
+
+                return;
+            }
+        }
+    }
+
+    private List<V> addAbsent(K key, Collection<V> values) {
+        while (true) {
+            Bucket<V> bucket = this.entries.computeIfAbsent(key, k -> new Bucket<>());
+            synchronized (bucket) {
+                if (bucket.removed) {
+                    continue;
+                }
+
+                List<V> added = new ArrayList<>(values.size());
+                for (V value : values) {
+                    if (!bucket.contains(value)) {
+                        bucket.values.add(new DbValue<>(value, false));
+                        added.add(value);
+                    }
+                }
+
+                return added;
+            }
+        }
+    }
+
+    // Must be called while holding the lock on the bucket
+    private void removeBucket(K key, Bucket<V> bucket) {
+        bucket.removed = true;
+        this.entries.remove(key, bucket);
+    }
+
+    private void addWeight(K key, Collection<V> values) {
+        if (this.evictionPolicy == null || this.weigher == null || values.isEmpty()) {
             return;
         }
 
-        Iterator<DbValue<V>> iterator = this.entries.get(key).iterator();
-        while (iterator.hasNext()) {
-            DbValue<V> dbValue = iterator.next();
-            if (!all && !dbValue.shouldFlush()) {
-                continue;
+        long weight = 0;
+        for (V value : values) {
+            weight += this.weigher.applyAsLong(value);
+        }
+
+        long totalWeight = this.weights.merge(key, weight, Long::sum);
+        this.evictionPolicy.recordWrite(key, totalWeight);
+    }
+
+    private void updateWeight(K key) {
+        if (this.evictionPolicy == null || this.weigher == null) {
+            return;
+        }
+
+        // The policy must not be called while holding the lock on a
+        // bucket, as it takes that lock itself when evicting
+        long weight = 0;
+        Bucket<V> bucket = this.entries.get(key);
+        if (bucket != null) {
+            synchronized (bucket) {
+                for (DbValue<V> dbValue : bucket.values) {
+                    weight += this.weigher.applyAsLong(dbValue.value);
+                }
             }
+        }
 
-            // If the db value is locked, do not flush
-            if (this.lockedKeys.contains(key)) {
-                continue;
+        if (weight == 0) {
+            this.weights.remove(key);
+            this.evictionPolicy.recordRemoval(key);
+        } else {
+            this.weights.put(key, weight);
+            this.evictionPolicy.recordWrite(key, weight);
+        }
+    }
+
+    private boolean evict(K key) {
+        // Never evict values which are in use or have not been saved
+        if (this.lockedKeys.contains(key)) {
+            return false;
+        }
+
+        Bucket<V> bucket = this.entries.get(key);
+        if (bucket != null) {
+            synchronized (bucket) {
+                for (DbValue<V> dbValue : bucket.values) {
+                    if (dbValue.dirty) {
+                        return false;
+                    }
+                }
+
+                this.removeBucket(key, bucket);
             }
+        }
 
-            if (!dbValue.dirty) {
-                iterator.remove();
-            } else {
-                BattleTracker.getInstance().warn("Unsaved DB value found in cache: {} for key {}", dbValue.value, key);
+        this.loadedKeys.remove(key);
+        this.expiryIndex.remove(key);
+        this.weights.remove(key);
+        return true;
+    }
+
+    private static final class Bucket<V> {
+        private final List<DbValue<V>> values = new ArrayList<>();
+        private boolean removed;
+
+        boolean contains(V value) {
+            return this.get(value) != null;
+        }
+
+        @Nullable
+        DbValue<V> get(V value) {
+            for (DbValue<V> dbValue : this.values) {
+                if (dbValue.value.equals(value)) {
+                    return dbValue;
+                }
             }
+
+            return null;
         }
     }
 }
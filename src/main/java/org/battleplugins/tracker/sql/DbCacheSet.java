@@ -89,12 +89,25 @@ class DbCacheSet<V> implements DbCache.SetCache<V> {
         });
     }
 
+    @Override
+    public void markUnsaved(V value) {
+        for (DbValue<V> entry : this.entries) {
+            if (entry.value.equals(value)) {
+                entry.dirty = true;
+                return;
+            }
+        }
+
+        this.entries.add(new DbValue<>(value, true));
+    }
+
     @Override
     public void flush(boolean all) {
+        long staleEntryTime = DbValue.staleEntryTime();
         Iterator<DbValue<V>> iterator = this.entries.iterator();
         while (iterator.hasNext()) {
             DbValue<V> dbValue = iterator.next();
-            if (!all && !dbValue.shouldFlush()) {
+            if (!all && !dbValue.shouldFlush(staleEntryTime)) {
                 continue;
             }
 
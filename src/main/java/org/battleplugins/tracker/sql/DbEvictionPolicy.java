@@ -0,0 +1,322 @@
+package org.battleplugins.tracker.sql;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * A size-bounded eviction policy for a {@link DbCache}, modelled
+ * after W-TinyLFU.
+ * <p>
+ * New entries are admitted to a small window ordered by recency. Once
+ * the window is full, its least recently used entry moves to the main
+ * region, and when the cache is over capacity it is only kept if it has
+ * been used more often than the entry the main region would evict in
+ * its place. Usage is tracked by an approximate frequency sketch. This
+ * keeps frequently used entries, such as those of online players, from
+ * being pushed out by a one-off sweep over many entries.
+ * <p>
+ * The policy only picks which entries to evict. Whether an entry can be
+ * evicted is left to the cache, so locked or unsaved entries are never
+ * removed. Accesses are buffered and applied in batches, so reading from
+ * the cache does not contend on the policy lock.
+ *
+ * @param <K> the key of the cache
+ */
+final class DbEvictionPolicy<K> {
+    private static final int ACCESS_BUFFER_SIZE = 128;
+    private static final int DRAIN_THRESHOLD = 16;
+    private static final int MAX_EVICTION_ATTEMPTS = 16;
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final Predicate<K> evictor;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<K, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Long> main = new LinkedHashMap<>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private final Queue<K> accessBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger bufferedAccesses = new AtomicInteger();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private long windowWeight;
+    private long mainWeight;
+
+    /**
+     * Creates a new eviction policy.
+     *
+     * @param maximumWeight the maximum total weight of the entries in the cache
+     * @param expectedEntries the expected amount of entries in the cache when full
+     * @param evictor the function to evict an entry from the cache, returning
+     *                false if the entry can not currently be evicted
+     */
+    DbEvictionPolicy(long maximumWeight, int expectedEntries, Predicate<K> evictor) {
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.evictor = evictor;
+        this.sketch = new FrequencySketch(expectedEntries);
+    }
+
+    /**
+     * Records an access of the given key.
+     *
+     * @param key the key which was accessed
+     */
+    void recordAccess(K key) {
+        // The buffer is lossy; if it is full, the access is dropped
+        // rather than making the reader wait on the policy
+        if (this.bufferedAccesses.get() < ACCESS_BUFFER_SIZE) {
+            this.accessBuffer.add(key);
+            if (this.bufferedAccesses.incrementAndGet() < DRAIN_THRESHOLD) {
+                return;
+            }
+        }
+
+        if (this.lock.tryLock()) {
+            try {
+                this.drainAccesses();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records that the given key was added to the cache, or
+     * that its weight has changed, evicting entries if the
+     * cache is now over capacity.
+     *
+     * @param key the key which was written
+     * @param weight the weight of the entry
+     */
+    void recordWrite(K key, long weight) {
+        this.lock.lock();
+        try {
+            this.drainAccesses();
+            this.sketch.increment(key);
+
+            Long oldWeight = this.window.get(key);
+            if (oldWeight != null) {
+                this.window.put(key, weight);
+                this.windowWeight += weight - oldWeight;
+            } else if ((oldWeight = this.main.get(key)) != null) {
+                this.main.put(key, weight);
+                this.mainWeight += weight - oldWeight;
+            } else {
+                this.window.put(key, weight);
+                this.windowWeight += weight;
+            }
+
+            this.evict();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Records that the given key was removed from the cache.
+     *
+     * @param key the key which was removed
+     */
+    void recordRemoval(K key) {
+        this.lock.lock();
+        try {
+            this.removeKey(key);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the total weight of the entries in the cache.
+     *
+     * @return the total weight of the entries
+     */
+    long getWeightedSize() {
+        this.lock.lock();
+        try {
+            return this.windowWeight + this.mainWeight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the amount of entries evicted by this policy.
+     *
+     * @return the amount of entries evicted
+     */
+    long getEvictionCount() {
+        return this.evictions.get();
+    }
+
+    private void drainAccesses() {
+        K key;
+        while ((key = this.accessBuffer.poll()) != null) {
+            this.bufferedAccesses.decrementAndGet();
+            this.sketch.increment(key);
+
+            // Move the entry to the most recently used position
+            if (this.window.get(key) == null) {
+                this.main.get(key);
+            }
+        }
+    }
+
+    private void evict() {
+        while (this.windowWeight > this.windowMaximum && !this.window.isEmpty()) {
+            Map.Entry<K, Long> eldest = this.window.entrySet().iterator().next();
+            K candidate = eldest.getKey();
+            long weight = eldest.getValue();
+
+            this.window.remove(candidate);
+            this.windowWeight -= weight;
+            this.main.put(candidate, weight);
+            this.mainWeight += weight;
+
+            if (this.isOverweight()) {
+                this.admit(candidate);
+            }
+        }
+
+        // Entries which can not be evicted, or entries growing in weight,
+        // may still leave the cache over capacity, so evict by recency.
+        // This is bounded, so a cache full of locked entries does not stall
+        int attempts = 0;
+        while (this.isOverweight() && attempts++ < MAX_EVICTION_ATTEMPTS) {
+            K victim = eldestKey(this.main);
+            if (victim == null) {
+                victim = eldestKey(this.window);
+            }
+
+            if (victim == null) {
+                return;
+            }
+
+            this.tryEvict(victim);
+        }
+    }
+
+    private void admit(K candidate) {
+        K victim = eldestKey(this.main);
+        if (victim == null || victim.equals(candidate)) {
+            return;
+        }
+
+        if (this.sketch.frequency(candidate) > this.sketch.frequency(victim)) {
+            this.tryEvict(victim);
+        } else {
+            this.tryEvict(candidate);
+        }
+    }
+
+    private void tryEvict(K key) {
+        if (this.evictor.test(key)) {
+            this.removeKey(key);
+            this.evictions.incrementAndGet();
+            return;
+        }
+
+        // Locked or unsaved; move it out of the way so the next
+        // eviction attempt considers a different entry
+        if (this.window.get(key) == null) {
+            this.main.get(key);
+        }
+    }
+
+    private void removeKey(K key) {
+        Long weight = this.window.remove(key);
+        if (weight != null) {
+            this.windowWeight -= weight;
+        } else if ((weight = this.main.remove(key)) != null) {
+            this.mainWeight -= weight;
+        }
+    }
+
+    private boolean isOverweight() {
+        return this.windowWeight + this.mainWeight > this.maximumWeight;
+    }
+
+    private static <K> K eldestKey(LinkedHashMap<K, Long> map) {
+        Iterator<K> iterator = map.keySet().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    /**
+     * A count-min sketch of how often keys have been used, with
+     * counters which are periodically halved so old usage fades.
+     */
+    private static final class FrequencySketch {
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+        };
+
+        private static final int MAX_FREQUENCY = 15;
+
+        private final byte[] table;
+        private final int mask;
+        private final int sampleSize;
+
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int size = Integer.highestOneBit(Math.max(16, Math.min(expectedEntries, 1 << 22)) - 1) << 1;
+            this.table = new byte[size];
+            this.mask = size - 1;
+            this.sampleSize = size * 10;
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int frequency = MAX_FREQUENCY;
+            for (long seed : SEEDS) {
+                frequency = Math.min(frequency, this.table[this.indexOf(hash, seed)]);
+            }
+
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (long seed : SEEDS) {
+                int index = this.indexOf(hash, seed);
+                if (this.table[index] < MAX_FREQUENCY) {
+                    this.table[index]++;
+                    added = true;
+                }
+            }
+
+            if (added && ++this.additions >= this.sampleSize) {
+                this.reset();
+            }
+        }
+
+        private void reset() {
+            for (int i = 0; i < this.table.length; i++) {
+                this.table[i] >>>= 1;
+            }
+
+            this.additions /= 2;
+        }
+
+        private int indexOf(int hash, long seed) {
+            long index = (hash + seed) * seed;
+            index += index >>> 32;
+            return (int) index & this.mask;
+        }
+
+        private static int spread(int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+    }
+}
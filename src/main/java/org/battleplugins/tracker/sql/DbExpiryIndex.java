@@ -0,0 +1,105 @@
+package org.battleplugins.tracker.sql;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * An index of the keys in a cache by when they were last accessed,
+ * so stale entries can be found without visiting every entry.
+ * <p>
+ * Keys are grouped into buckets of a fixed time span. Accessing a key
+ * only updates the index when it moves to a newer bucket, and expiring
+ * entries only visits the buckets which are entirely older than the
+ * stale entry time. Entries may therefore expire up to one bucket span
+ * later than they would otherwise.
+ *
+ * @param <K> the key of the cache
+ */
+final class DbExpiryIndex<K> {
+    private static final long BUCKET_SPAN = 5000;
+
+    private final NavigableMap<Long, Set<K>> buckets = new ConcurrentSkipListMap<>();
+    private final Map<K, Long> keyBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * Records that the given key was accessed at the given time.
+     *
+     * @param key the key which was accessed
+     * @param time the time the key was accessed, in milliseconds
+     */
+    void touch(K key, long time) {
+        long bucket = time / BUCKET_SPAN;
+        Long previous = this.keyBuckets.get(key);
+        if (previous != null && previous >= bucket) {
+            return;
+        }
+
+        this.keyBuckets.put(key, bucket);
+        this.buckets.computeIfAbsent(bucket, b -> ConcurrentHashMap.newKeySet()).add(key);
+        if (previous != null) {
+            Set<K> keys = this.buckets.get(previous);
+            if (keys != null) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Removes the given key from the index.
+     *
+     * @param key the key to remove
+     */
+    void remove(K key) {
+        Long bucket = this.keyBuckets.remove(key);
+        if (bucket != null) {
+            Set<K> keys = this.buckets.get(bucket);
+            if (keys != null) {
+                keys.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Expires the keys which have not been accessed within the
+     * given stale entry time.
+     * <p>
+     * The flusher is called for each expired key, and should return
+     * whether the entry was removed from the cache. Entries which
+     * were not removed, such as ones which are locked or unsaved,
+     * are checked again once the stale entry time has passed again.
+     *
+     * @param now the current time, in milliseconds
+     * @param staleEntryTime the time, in milliseconds, after which an entry is stale
+     * @param flusher the function to flush an expired key from the cache
+     * @return the amount of keys removed from the cache
+     */
+    int expire(long now, long staleEntryTime, Predicate<K> flusher) {
+        long expiredBucket = (now - staleEntryTime) / BUCKET_SPAN;
+
+        int removed = 0;
+        Map.Entry<Long, Set<K>> entry;
+        while ((entry = this.buckets.firstEntry()) != null && entry.getKey() < expiredBucket) {
+            long bucket = entry.getKey();
+            this.buckets.remove(bucket, entry.getValue());
+
+            for (K key : entry.getValue()) {
+                // The key was accessed again and moved to a newer bucket
+                if (!this.keyBuckets.remove(key, bucket)) {
+                    continue;
+                }
+
+                if (flusher.test(key)) {
+                    removed++;
+                } else {
+                    this.touch(key, now);
+                }
+            }
+        }
+
+        return removed;
+    }
+}
@@ -0,0 +1,86 @@
+package org.battleplugins.tracker.sql;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Tracks the loads currently in flight for a cache, so concurrent
+ * requests for the same key share a single load from the database
+ * rather than each running their own query.
+ *
+ * @param <K> the key of the cache
+ * @param <V> the value of the cache
+ */
+final class DbLoads<K, V> {
+    private final Map<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the cached value for the given key, or loads it if
+     * it is not cached.
+     * <p>
+     * The loader is only called on a cache miss, and only once for
+     * all requests made while a load for the key is in flight.
+     *
+     * @param key the key to get the value for
+     * @param cached the function to get the cached value, returning null on a miss
+     * @param loader the loader to load the value from the database
+     * @param cache the function to cache the loaded value, returning the value to complete with
+     * @return the cached or loaded value
+     */
+    CompletableFuture<V> getOrLoad(K key, Function<K, V> cached, Function<K, CompletableFuture<V>> loader, Function<V, V> cache) {
+        V value = cached.apply(key);
+        if (value != null) {
+            return CompletableFuture.completedFuture(value);
+        }
+
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = this.inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        // The previous load may have completed between checking
+        // the cache and registering this one
+        value = cached.apply(key);
+        if (value != null) {
+            this.inFlight.remove(key, future);
+            future.complete(value);
+            return future;
+        }
+
+        CompletableFuture<V> load;
+        try {
+            load = loader.apply(key);
+        } catch (Throwable e) {
+            this.inFlight.remove(key, future);
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        load.whenComplete((loaded, e) -> {
+            if (e != null) {
+                this.inFlight.remove(key, future);
+                future.completeExceptionally(e);
+                return;
+            }
+
+            // Cache the value before no longer tracking the load, so
+            // there is no point where the key is neither cached nor loading
+            V result;
+            try {
+                result = cache.apply(loaded);
+            } catch (Throwable t) {
+                this.inFlight.remove(key, future);
+                future.completeExceptionally(t);
+                return;
+            }
+
+            this.inFlight.remove(key, future);
+            future.complete(result);
+        });
+
+        return future;
+    }
+}
@@ -1,12 +1,13 @@
 package org.battleplugins.tracker.sql;
 
 import org.battleplugins.tracker.BattleTracker;
+import org.battleplugins.tracker.util.CoarseClock;
 
 class DbValue<V> {
     final V value;
     boolean dirty;
     boolean locked;
-    long lastAccess = System.currentTimeMillis();
+    long lastAccess = CoarseClock.now();
 
     public DbValue(V value, boolean dirty) {
         this.value = value;
@@ -22,11 +23,25 @@ class DbValue<V> {
     }
 
     public void resetLastAccess() {
-        this.lastAccess = System.currentTimeMillis();
+        // Only write when the clock has moved on, so repeated reads
+        // within the same tick do not keep dirtying the cache line
+        long now = CoarseClock.now();
+        if (this.lastAccess != now) {
+            this.lastAccess = now;
+        }
     }
 
-    public boolean shouldFlush() {
-        long staleEntryTime = BattleTracker.getInstance().getMainConfig().getAdvanced().staleEntryTime() * 1000L;
-        return !this.dirty && System.currentTimeMillis() - this.lastAccess > staleEntryTime;
+    public boolean shouldFlush(long staleEntryTime) {
+        return !this.dirty && CoarseClock.now() - this.lastAccess > staleEntryTime;
+    }
+
+    /**
+     * Returns the time, in milliseconds, after which an entry
+     * which has not been accessed is considered stale.
+     *
+     * @return the stale entry time
+     */
+    public static long staleEntryTime() {
+        return BattleTracker.getInstance().getMainConfig().getAdvanced().staleEntryTime() * 1000L;
     }
 }
\ No newline at end of file
@@ -0,0 +1,325 @@
+package org.battleplugins.tracker.sql;
+
+import org.battleplugins.tracker.BattleTracker;
+import org.bukkit.Bukkit;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executor used to run blocking SQL operations.
+ * <p>
+ * Operations run on a dedicated, bounded set of threads sized to the
+ * connection pool, rather than the common pool shared with the rest of
+ * the server. Once the queue is full, operations submitted off the main
+ * thread wait a short while for space, slowing down callers instead of
+ * queueing without limit. Operations which still cannot be queued, are
+ * submitted from the main thread, or are submitted once the executor is
+ * shut down are rejected, and the futures returned by
+ * {@link #runAsync(Runnable)} and {@link #supplyAsync(Supplier)} complete
+ * exceptionally rather than blocking the server. Once the plugin starts
+ * disabling, see {@link #prepareShutdown()}, operations are never rejected
+ * for a full queue, so the final save is not lost.
+ * <p>
+ * When running on Java 21 or newer, operations can instead each be run
+ * on their own virtual thread, with a semaphore limiting how many run at
+ * once to the size of the connection pool. As most of the time spent in
+ * an operation is waiting on the database, this allows many more
+ * operations to be in flight without tying up platform threads. On
+ * older versions of Java, the platform threads are used instead.
+ */
+public final class SqlExecutor implements Executor {
+    // How long, in milliseconds, an operation submitted off the main thread
+    // waits for space in the queue before being rejected
+    private static final long QUEUE_OFFER_TIMEOUT = 5000;
+
+    private final ThreadPoolExecutor executor;
+    private final BlockingQueue<Runnable> queue;
+
+    @Nullable
+    private final ExecutorService virtualExecutor;
+    private final Semaphore permits;
+    private final int maxPermits;
+
+    private final AtomicLong executedTasks = new AtomicLong();
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    private volatile boolean shuttingDown;
+    private final AtomicLong totalWaitTime = new AtomicLong();
+    private volatile long maxWaitTime;
+
+    /**
+     * Creates a new SQL executor.
+     *
+     * @param threads the amount of threads to run operations on
+     * @param queueCapacity the maximum amount of operations waiting to run
+     * @param virtualThreads whether to run operations on virtual threads, if available
+     */
+    public SqlExecutor(int threads, int queueCapacity, boolean virtualThreads) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60L,
+                TimeUnit.SECONDS,
+                this.queue,
+                new SqlThreadFactory(),
+                this::reject
+        );
+
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.maxPermits = threads;
+        this.permits = new Semaphore(threads, true);
+        this.virtualExecutor = virtualThreads ? createVirtualExecutor() : null;
+        if (virtualThreads && this.virtualExecutor == null) {
+            BattleTracker.getInstance().warn("Virtual threads are not available on this version of Java (requires Java 21). Falling back to platform threads for SQL operations.");
+        }
+    }
+
+    /**
+     * Runs the given operation asynchronously.
+     *
+     * @param runnable the operation to run
+     * @return a future which completes once the operation has run, or
+     *         completes exceptionally if the operation was rejected
+     */
+    public CompletableFuture<Void> runAsync(Runnable runnable) {
+        try {
+            return CompletableFuture.runAsync(runnable, this);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Runs the given operation asynchronously.
+     *
+     * @param supplier the operation to run
+     * @return a future which completes with the result of the operation,
+     *         or completes exceptionally if the operation was rejected
+     * @param <T> the result type of the operation
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, this);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        long submitTime = System.nanoTime();
+        if (this.virtualExecutor != null && !this.virtualExecutor.isShutdown()) {
+            this.virtualExecutor.execute(() -> {
+                // Cap the amount of operations running at once to the size of
+                // the connection pool; blocking here only parks the virtual thread
+                this.permits.acquireUninterruptibly();
+                try {
+                    this.run(command, submitTime);
+                } finally {
+                    this.permits.release();
+                }
+            });
+
+            return;
+        }
+
+        this.executor.execute(() -> this.run(command, submitTime));
+    }
+
+    private void reject(Runnable runnable, ThreadPoolExecutor executor) {
+        if (executor.isShutdown()) {
+            this.rejectedTasks.incrementAndGet();
+            throw new RejectedExecutionException("SQL executor has been shut down!");
+        }
+
+        // Operations submitted while disabling, such as the final save, wait
+        // for as long as it takes, as nothing would retry them afterwards
+        if (this.shuttingDown) {
+            try {
+                this.queue.put(runnable);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (!Bukkit.isPrimaryThread()) {
+            // Never block the main thread waiting for space in the queue otherwise
+            try {
+                if (this.queue.offer(runnable, QUEUE_OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    // The executor may have shut down while waiting, in which
+                    // case the operation would never run
+                    if (!executor.isShutdown() || !this.queue.remove(runnable)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        this.rejectedTasks.incrementAndGet();
+        throw new RejectedExecutionException("SQL executor queue is full (" + this.queue.size() + " operations waiting)!");
+    }
+
+    private void run(Runnable command, long submitTime) {
+        long waitTime = System.nanoTime() - submitTime;
+        this.totalWaitTime.addAndGet(waitTime);
+        this.maxWaitTime = Math.max(this.maxWaitTime, waitTime);
+        this.executedTasks.incrementAndGet();
+
+        command.run();
+    }
+
+    /**
+     * Returns whether operations are run on virtual threads.
+     *
+     * @return whether operations are run on virtual threads
+     */
+    public boolean isVirtual() {
+        return this.virtualExecutor != null;
+    }
+
+    /**
+     * Returns the amount of operations waiting to run.
+     *
+     * @return the amount of operations waiting to run
+     */
+    public int getQueueDepth() {
+        if (this.virtualExecutor != null) {
+            return this.permits.getQueueLength();
+        }
+
+        return this.queue.size();
+    }
+
+    /**
+     * Returns the amount of operations currently running.
+     *
+     * @return the amount of operations currently running
+     */
+    public int getActiveCount() {
+        if (this.virtualExecutor != null) {
+            return this.maxPermits - this.permits.availablePermits();
+        }
+
+        return this.executor.getActiveCount();
+    }
+
+    /**
+     * Returns the amount of operations which have started running.
+     *
+     * @return the amount of operations which have started running
+     */
+    public long getExecutedTasks() {
+        return this.executedTasks.get();
+    }
+
+    /**
+     * Returns the amount of operations which were rejected, either
+     * as the queue was full or the executor was shut down.
+     *
+     * @return the amount of rejected operations
+     */
+    public long getRejectedTasks() {
+        return this.rejectedTasks.get();
+    }
+
+    /**
+     * Returns the average time, in milliseconds, operations waited
+     * in the queue before running.
+     *
+     * @return the average wait time
+     */
+    public double getAverageWaitTime() {
+        long executedTasks = this.executedTasks.get();
+        if (executedTasks == 0) {
+            return 0;
+        }
+
+        return this.totalWaitTime.get() / (double) executedTasks / 1_000_000D;
+    }
+
+    /**
+     * Returns the longest time, in milliseconds, an operation waited
+     * in the queue before running.
+     *
+     * @return the longest wait time
+     */
+    public double getMaxWaitTime() {
+        return this.maxWaitTime / 1_000_000D;
+    }
+
+    /**
+     * Marks the executor as about to shut down. From here on, operations
+     * wait for space in the queue rather than being rejected when it is
+     * full, even on the main thread.
+     */
+    public void prepareShutdown() {
+        this.shuttingDown = true;
+    }
+
+    /**
+     * Shuts down the executor, waiting for queued operations
+     * to complete.
+     */
+    public void shutdown() {
+        if (this.virtualExecutor != null) {
+            shutdown(this.virtualExecutor);
+        }
+
+        shutdown(this.executor);
+    }
+
+    private void shutdown(ExecutorService executor) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                BattleTracker.getInstance().warn("Timed out waiting for {} SQL operations to complete!", this.getQueueDepth());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Nullable
+    private static ExecutorService createVirtualExecutor() {
+        // Virtual threads are only available on Java 21 and newer, while
+        // the plugin is compiled against Java 17, so look them up reflectively
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "BattleTracker SQL Virtual Thread #", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static final class SqlThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BattleTracker SQL Thread #" + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -9,12 +9,16 @@ import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.battleplugins.tracker.BattleTracker;
 import org.battleplugins.tracker.BattleTrackerConfig;
+import org.jetbrains.annotations.Nullable;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Holds an SQL connection to a database.
@@ -26,11 +30,16 @@ import java.sql.Statement;
  */
 public final class SqlInstance {
     private static final String CREATE_DATABASE = "CREATE DATABASE IF NOT EXISTS `%s`";
+    private static final int EXECUTOR_QUEUE_CAPACITY = 1024;
 
     private static SqlInstance instance;
 
     private final String db;
     private final SqlSerializer.SqlType type;
+    private final SqlSerializer.UuidFormat uuidFormat;
+    private final boolean virtualThreads;
+    private final BattleTrackerConfig.Pool pool;
+    private final BattleTrackerConfig.Sqlite sqlite;
 
     private final String tablePrefix;
     private final String url;
@@ -39,11 +48,18 @@ public final class SqlInstance {
     private final String password;
 
     private PoolingDataSource<PoolableConnection> dataSource;
+    @Nullable
+    private PoolingDataSource<PoolableConnection> readDataSource;
+    private SqlExecutor executor;
 
     private SqlInstance(BattleTrackerConfig.DatabaseOptions options) {
         this.tablePrefix = options.prefix();
         this.db = options.db();
         this.type = options.type();
+        this.uuidFormat = options.uuidFormat();
+        this.virtualThreads = options.virtualThreads();
+        this.pool = options.pool();
+        this.sqlite = options.sqlite();
         if (options.type() == SqlSerializer.SqlType.SQLITE) {
             this.url = BattleTracker.getInstance().getDataFolder().toString();
         } else {
@@ -60,11 +76,24 @@ public final class SqlInstance {
     }
 
     public void close() {
+        // Let queued operations finish before closing the connections
+        if (this.executor != null) {
+            this.executor.shutdown();
+        }
+
         try {
             this.dataSource.close();
         } catch (SQLException e) {
             BattleTracker.getInstance().error("Could not close SQL connection!", e);
         }
+
+        if (this.readDataSource != null) {
+            try {
+                this.readDataSource.close();
+            } catch (SQLException e) {
+                BattleTracker.getInstance().error("Could not close read-only SQL connection!", e);
+            }
+        }
     }
 
     private void initDataSource() {
@@ -81,28 +110,57 @@ public final class SqlInstance {
         String datasourceString;
         int minIdle;
         int maxActive;
+        int readConnections = 0;
+        List<String> initSql = List.of();
         switch (this.type) {
             case SQLITE:
                 datasourceString = connectionString = "jdbc:sqlite:" + this.url + "/" + this.db + ".sqlite";
                 maxActive = 1;
                 minIdle = -1;
+                initSql = this.sqlite.getPragmas();
+
+                // Readers only run alongside the writer with write-ahead logging
+                if (this.sqlite.isWal()) {
+                    readConnections = this.sqlite.readConnections();
+                } else if (this.sqlite.readConnections() > 0) {
+                    BattleTracker.getInstance().warn("SQLite read connections require the WAL journal mode, ignoring.");
+                }
                 break;
             case MYSQL:
             default:
-                minIdle = 10;
-                maxActive = 20;
-                datasourceString = "jdbc:mysql://" + this.url + ":" + this.port + "/" + this.db + "?autoReconnect=true";
+                minIdle = this.pool.minIdle();
+                maxActive = this.pool.maxSize();
+
+                // Have the server prepare statements, so pooled statements are not re-parsed on every use
+                datasourceString = "jdbc:mysql://" + this.url + ":" + this.port + "/" + this.db + "?autoReconnect=true&useServerPrepStmts=true";
                 connectionString = "jdbc:mysql://" + this.url + ":" + this.port + "?autoReconnect=true";
                 break;
         }
 
         // Create the data source
         try {
-            this.dataSource = setupDataSource(datasourceString, this.username, this.password, minIdle, maxActive);
+            this.dataSource = setupDataSource(datasourceString, this.username, this.password, minIdle, maxActive, this.pool, initSql);
+            if (this.type == SqlSerializer.SqlType.SQLITE) {
+                // Set before any reader connects, as readers need the WAL journal mode
+                try (Connection journalConnection = this.dataSource.getConnection();
+                     Statement st = journalConnection.createStatement()) {
+                    st.execute(this.sqlite.getJournalModePragma());
+                }
+            }
+
+            if (readConnections > 0) {
+                List<String> readInitSql = new ArrayList<>(initSql);
+                readInitSql.add("PRAGMA query_only = ON");
+
+                this.readDataSource = setupDataSource(datasourceString, this.username, this.password, minIdle, readConnections, this.pool, readInitSql);
+            }
         } catch (Exception e) {
             throw new IllegalStateException("Could not create data source for SQL connection", e);
         }
 
+        // One thread per connection, as each operation holds a connection while it runs
+        this.executor = new SqlExecutor(maxActive + readConnections, EXECUTOR_QUEUE_CAPACITY, this.virtualThreads);
+
         if (this.type == SqlSerializer.SqlType.MYSQL) {
             String statement = String.format(CREATE_DATABASE, this.db);
             try {
@@ -135,10 +193,32 @@ public final class SqlInstance {
         return this.type;
     }
 
+    public SqlSerializer.UuidFormat getUuidFormat() {
+        return this.uuidFormat;
+    }
+
     public DataSource getDataSource() {
         return this.dataSource;
     }
 
+    /**
+     * Returns the data source to use for queries which only read
+     * from the database.
+     * <p>
+     * This is a separate, read-only pool when one is configured,
+     * so reads do not wait on writes. Otherwise, this is the same
+     * as {@link #getDataSource()}.
+     *
+     * @return the data source to use for reads
+     */
+    public DataSource getReadDataSource() {
+        return this.readDataSource == null ? this.dataSource : this.readDataSource;
+    }
+
+    public SqlExecutor getExecutor() {
+        return this.executor;
+    }
+
     public static SqlInstance getInstance() {
         return instance;
     }
@@ -152,10 +232,21 @@ public final class SqlInstance {
     }
 
     private static PoolingDataSource<PoolableConnection> setupDataSource(String connectURI, String username, String password,
-                                                                        int minIdle, int maxTotal) {
+                                                                        int minIdle, int maxTotal, BattleTrackerConfig.Pool pool,
+                                                                        List<String> initSql) {
         ConnectionFactory connectionFactory = new DriverManagerConnectionFactory(connectURI, username, password);
         PoolableConnectionFactory factory = new PoolableConnectionFactory(connectionFactory, null);
         factory.setValidationQuery("SELECT 1");
+        if (!initSql.isEmpty()) {
+            factory.setConnectionInitSql(initSql);
+        }
+
+        // Cache prepared statements per connection, as the same
+        // handful of queries are run over and over again
+        if (pool.statementCacheSize() > 0) {
+            factory.setPoolStatements(true);
+            factory.setMaxOpenPreparedStatements(pool.statementCacheSize());
+        }
 
         GenericObjectPoolConfig<PoolableConnection> poolConfig = new GenericObjectPoolConfig<>();
         if (minIdle != -1) {
@@ -163,7 +254,15 @@ public final class SqlInstance {
         }
 
         poolConfig.setMaxTotal(maxTotal);
-        poolConfig.setTestOnBorrow(true); // Test before the connection is made
+
+        // Validate idle connections in the background rather than on every borrow,
+        // which would otherwise add a round-trip to the database for each operation
+        if (pool.validationInterval() > 0) {
+            poolConfig.setTestWhileIdle(true);
+            poolConfig.setTimeBetweenEvictionRuns(Duration.ofSeconds(pool.validationInterval()));
+        } else {
+            poolConfig.setTestOnBorrow(true);
+        }
 
         // Object pool
         GenericObjectPool<PoolableConnection> connectionPool = new GenericObjectPool<>(factory, poolConfig);
@@ -2,6 +2,7 @@ package org.battleplugins.tracker.sql;
 
 import org.battleplugins.tracker.BattleTracker;
 
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -9,6 +10,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -40,6 +43,68 @@ public abstract class SqlSerializer {
         }
     }
 
+    /**
+     * The format player ids are stored in.
+     */
+    public enum UuidFormat {
+        /**
+         * Ids are stored as their string representation.
+         */
+        STRING,
+        /**
+         * Ids are stored as 16 raw bytes.
+         */
+        BINARY;
+
+        /**
+         * Gets the column type used to store ids in this format.
+         *
+         * @param type the type of the database
+         * @return the column type
+         */
+        public String getColumnType(SqlType type) {
+            if (this == STRING) {
+                return "VARCHAR(100)";
+            }
+
+            return type == SqlType.MYSQL ? "BINARY(16)" : "BLOB";
+        }
+
+        /**
+         * Converts the given id into the value stored in the database.
+         *
+         * @param uuid the id to convert
+         * @return the value to store
+         */
+        public Object toSql(UUID uuid) {
+            if (this == STRING) {
+                return uuid.toString();
+            }
+
+            return ByteBuffer.allocate(16)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .array();
+        }
+
+        /**
+         * Reads an id stored in this format from the given column.
+         *
+         * @param resultSet the result set to read from
+         * @param column the column to read
+         * @return the id
+         * @throws SQLException if the column could not be read
+         */
+        public UUID fromSql(ResultSet resultSet, String column) throws SQLException {
+            if (this == STRING) {
+                return UUID.fromString(resultSet.getString(column));
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(resultSet.getBytes(column));
+            return new UUID(buffer.getLong(), buffer.getLong());
+        }
+    }
+
     public SqlSerializer() {
     }
 
@@ -50,6 +115,19 @@ public abstract class SqlSerializer {
         return SqlInstance.getInstance().getType();
     }
 
+    public UuidFormat getUuidFormat() {
+        return SqlInstance.getInstance().getUuidFormat();
+    }
+
+    /**
+     * Returns the executor asynchronous SQL operations should run on.
+     *
+     * @return the executor for SQL operations
+     */
+    public SqlExecutor getExecutor() {
+        return SqlInstance.getInstance().getExecutor();
+    }
+
     public Connection getConnection() {
         return this.getConnection(true, true);
     }
@@ -68,6 +146,25 @@ public abstract class SqlSerializer {
         }
     }
 
+    /**
+     * Gets a connection for queries which only read from
+     * the database.
+     *
+     * @param displayErrors whether to log errors
+     * @return a connection for reading, or null if one could not be made
+     */
+    public Connection getReadConnection(boolean displayErrors) {
+        try {
+            return SqlInstance.getInstance().getReadDataSource().getConnection();
+        } catch (SQLException e) {
+            if (displayErrors) {
+                BattleTracker.getInstance().error("Could not get connection to SQL database", e);
+            }
+
+            return null;
+        }
+    }
+
     public void closeConnection(ResultSetConnection rscon) {
         if (rscon == null || rscon.con == null) {
             return;
@@ -180,6 +277,61 @@ public abstract class SqlSerializer {
         return false;
     }
 
+    /**
+     * Check to see whether the given MySQL table has an index which
+     * starts with the two given columns, in order.
+     *
+     * @param table the table to check
+     * @param firstColumn the first column of the index
+     * @param secondColumn the second column of the index
+     * @return whether the index exists
+     */
+    protected boolean hasIndex(String table, String firstColumn, String secondColumn) {
+        String statement = "SELECT COUNT(*) FROM information_schema.STATISTICS s1 JOIN information_schema.STATISTICS s2 " +
+                "ON s1.TABLE_SCHEMA = s2.TABLE_SCHEMA AND s1.TABLE_NAME = s2.TABLE_NAME AND s1.INDEX_NAME = s2.INDEX_NAME " +
+                "WHERE s1.TABLE_SCHEMA = ? AND s1.TABLE_NAME = ? AND s1.SEQ_IN_INDEX = 1 AND s1.COLUMN_NAME = ? " +
+                "AND s2.SEQ_IN_INDEX = 2 AND s2.COLUMN_NAME = ?";
+
+        Boolean indexExists = this.getBoolean(true, 2, statement, SqlInstance.getInstance().getDatabase(), table, firstColumn, secondColumn);
+        return indexExists != null && indexExists;
+    }
+
+    /**
+     * Gets the declared type of the given column.
+     *
+     * @param table the table to check
+     * @param column the column to check
+     * @return the type of the column, or null if the column does not exist
+     */
+    protected String getColumnType(String table, String column) {
+        SqlType type = SqlInstance.getInstance().getType();
+        switch (type) {
+            case MYSQL:
+                return this.getString("SELECT DATA_TYPE FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = ? " +
+                        "AND TABLE_NAME = ? AND COLUMN_NAME = ?", SqlInstance.getInstance().getDatabase(), table, column);
+            case SQLITE:
+                // Tables can not be bound here either, see above
+                ResultSetConnection rscon = this.executeQuery("PRAGMA table_info('" + table + "')");
+                if (rscon == null || rscon.con == null) {
+                    return null;
+                }
+
+                try {
+                    ResultSet rs = rscon.rs;
+                    while (rs.next()) {
+                        if (column.equalsIgnoreCase(rs.getString("name"))) {
+                            return rs.getString("type");
+                        }
+                    }
+                } catch (SQLException e) {
+                    BattleTracker.getInstance().error("Could not get column type", e);
+                } finally {
+                    this.closeConnection(rscon);
+                }
+        }
+        return null;
+    }
+
     protected Boolean hasTable(String tableName) {
         Boolean exists;
         if (SqlInstance.getInstance().getType() == SqlType.SQLITE) {
@@ -203,7 +355,7 @@ public abstract class SqlSerializer {
      * @return the ResultSetConnection
      */
     protected ResultSetConnection executeQuery(boolean displayErrors, Integer timeoutSeconds, String strRawStmt, Object... varArgs) {
-        return this.executeQuery(this.getConnection(), displayErrors, timeoutSeconds, strRawStmt, varArgs);
+        return this.executeQuery(this.getReadConnection(displayErrors), displayErrors, timeoutSeconds, strRawStmt, varArgs);
     }
 
     /**
@@ -233,12 +385,15 @@ public abstract class SqlSerializer {
 
     protected void executeUpdate(boolean async, String strRawStmt, Object... varArgs) {
         if (async) {
-            CompletableFuture.runAsync(() -> {
+            this.getExecutor().runAsync(() -> {
                 try {
                     this.executeUpdate(strRawStmt, varArgs);
                 } catch (Exception e) {
                     BattleTracker.getInstance().error("Could not execute update {}", strRawStmt, e);
                 }
+            }).exceptionally(e -> {
+                BattleTracker.getInstance().error("Could not queue update {}", strRawStmt, e);
+                return null;
             });
         } else {
             try {
@@ -269,7 +424,7 @@ public abstract class SqlSerializer {
     protected CompletableFuture<Void> executeBatch(boolean async, String updateStatement, List<List<Object>> batch) {
         CompletableFuture<Void> future;
         if (async) {
-            future = CompletableFuture.runAsync(() -> this.executeBatch(updateStatement, batch));
+            future = this.getExecutor().runAsync(() -> this.executeBatch(updateStatement, batch));
         } else {
             future = new CompletableFuture<>();
             try {
@@ -317,6 +472,116 @@ public abstract class SqlSerializer {
         }
     }
 
+    protected CompletableFuture<Void> executeBatches(boolean async, Map<String, List<List<Object>>> batches) {
+        CompletableFuture<Void> future;
+        if (async) {
+            future = this.getExecutor().runAsync(() -> this.executeBatches(batches));
+        } else {
+            future = new CompletableFuture<>();
+            try {
+                this.executeBatches(batches);
+                future.complete(null);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }
+
+        return future;
+    }
+
+    /**
+     * Executes the given batches in a single transaction.
+     * <p>
+     * Each statement is executed as one JDBC batch on the same
+     * connection, in the iteration order of the given map. If any
+     * of the batches fail, the whole transaction is rolled back.
+     *
+     * @param batches the rows to execute, keyed by their statement
+     */
+    protected void executeBatches(Map<String, List<List<Object>>> batches) {
+        if (batches.values().stream().allMatch(List::isEmpty)) {
+            return;
+        }
+
+        Connection con = this.getConnection(true, false);
+        if (con == null) {
+            throw new IllegalStateException("Could not get connection to SQL database");
+        }
+
+        String currentStatement = null;
+        try {
+            for (Map.Entry<String, List<List<Object>>> entry : batches.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+
+                currentStatement = entry.getKey();
+                try (PreparedStatement ps = con.prepareStatement(currentStatement)) {
+                    for (List<Object> update : entry.getValue()) {
+                        for (int i = 0; i < update.size(); i++) {
+                            ps.setObject(i + 1, update.get(i));
+                        }
+
+                        ps.addBatch();
+                    }
+
+                    ps.executeBatch();
+                }
+            }
+
+            con.commit();
+        } catch (Exception e) {
+            // Roll back on any failure, not just SQL errors, so the
+            // connection is not returned to the pool mid-transaction
+            try {
+                con.rollback();
+            } catch (SQLException ex) {
+                BattleTracker.getInstance().error("Could not roll back transaction", ex);
+            }
+
+            throw new IllegalStateException("Could not execute batch " + currentStatement, e);
+        } finally {
+            this.closeConnection(con);
+        }
+    }
+
+    /**
+     * Executes the given statements in a single transaction.
+     * <p>
+     * If any of the statements fail, the whole transaction is
+     * rolled back. Note that MySQL commits implicitly before and
+     * after statements which change the schema, such as creating
+     * or altering tables, so these can not be rolled back.
+     *
+     * @param statements the statements to execute
+     */
+    protected void executeUpdates(List<String> statements) {
+        Connection con = this.getConnection(true, false);
+        if (con == null) {
+            throw new IllegalStateException("Could not get connection to SQL database");
+        }
+
+        String currentStatement = null;
+        try (Statement statement = con.createStatement()) {
+            for (String update : statements) {
+                currentStatement = update;
+                statement.executeUpdate(update);
+            }
+
+            con.commit();
+        } catch (Exception e) {
+            try {
+                con.rollback();
+            } catch (SQLException ex) {
+                BattleTracker.getInstance().error("Could not roll back transaction", ex);
+            }
+
+            throw new IllegalStateException("Could not execute update " + currentStatement, e);
+        } finally {
+            this.closeConnection(con);
+        }
+    }
+
     protected PreparedStatement getStatement(String strRawStmt, Connection con, Object... varArgs) {
         return this.getStatement(true, strRawStmt, con, varArgs);
     }
@@ -2,22 +2,38 @@ package org.battleplugins.tracker.sql;
 
 import org.battleplugins.tracker.BattleTracker;
 import org.battleplugins.tracker.SqlTracker;
+import org.battleplugins.tracker.stat.Leaderboard;
 import org.battleplugins.tracker.stat.Record;
+import org.battleplugins.tracker.stat.StatMap;
 import org.battleplugins.tracker.stat.StatType;
 import org.battleplugins.tracker.stat.TallyEntry;
 import org.battleplugins.tracker.stat.VersusTally;
 import org.jetbrains.annotations.Blocking;
+import org.jetbrains.annotations.Nullable;
 import java.sql.Timestamp;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * Main SQL serializer for Trackers.
@@ -26,6 +42,12 @@ import java.util.concurrent.CompletableFuture;
  */
 public class TrackerSqlSerializer extends SqlSerializer {
     private static final int MAX_LENGTH = 100;
+    private static final String STAT_COLUMN_TYPE = "FLOAT DEFAULT 0";
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+    // Matches the decimal numbers MySQL can convert to a float column
+    private static final String NUMERIC_PATTERN = "^ *[+-]?([0-9]+[.]?[0-9]*|[.][0-9]+)([eE][+-]?[0-9]+)? *$";
+    // Kept well below the lowest bound parameter limit (999 on older SQLite versions)
+    private static final int IN_LIST_CHUNK_SIZE = 500;
 
     private final String overallTable;
     private final String tallyTable;
@@ -33,9 +55,23 @@ public class TrackerSqlSerializer extends SqlSerializer {
 
     private final SqlTracker tracker;
 
+    private final List<StatType> overallStats;
     private final List<String> overallColumns;
+    private final List<StatType> versusStats;
     private final List<String> versusColumns;
 
+    private final String insertOverallStatement;
+    private final String insertVersusStatement;
+    private final String insertTallyStatement;
+    private final Map<BitSet, String> updateOverallStatements = new ConcurrentHashMap<>();
+
+    // Saves which have not completed yet for each player. Loads wait on
+    // these, as the read connections may not see a save until it commits
+    private final Map<UUID, CompletableFuture<Void>> pendingSaves = new ConcurrentHashMap<>();
+
+    private final SaveMode saveMode;
+    private final UuidFormat uuidFormat;
+
     public TrackerSqlSerializer(SqlTracker tracker) {
         this(
                 tracker,
@@ -47,7 +83,9 @@ public class TrackerSqlSerializer extends SqlSerializer {
     }
 
     public TrackerSqlSerializer(SqlTracker tracker, List<StatType> overallColumns, List<StatType> versusColumns) {
+        this.overallStats = List.copyOf(overallColumns);
         this.overallColumns = overallColumns.stream().map(StatType::getKey).toList();
+        this.versusStats = List.copyOf(versusColumns);
         this.versusColumns = versusColumns.stream().map(StatType::getKey).toList();
 
         this.tracker = tracker;
@@ -57,6 +95,13 @@ public class TrackerSqlSerializer extends SqlSerializer {
         this.tallyTable = tablePrefix + tracker.getName().toLowerCase() + "_tally";
         this.versusTable = tablePrefix + tracker.getName().toLowerCase() + "_versus";
 
+        this.saveMode = BattleTracker.getInstance().getMainConfig().getAdvanced().saveMode();
+        this.uuidFormat = this.getUuidFormat();
+
+        this.insertOverallStatement = this.constructInsertOverallStatement();
+        this.insertVersusStatement = this.constructInsertVersusStatement();
+        this.insertTallyStatement = this.constructInsertTallyStatement();
+
         this.init();
     }
 
@@ -72,8 +117,8 @@ public class TrackerSqlSerializer extends SqlSerializer {
     }
 
     public CompletableFuture<Record> loadRecord(UUID uuid) {
-        return CompletableFuture.supplyAsync(() -> {
-            ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.overallTable + " WHERE id = ?", uuid.toString());
+        return this.supplyAfterPendingSaves(List.of(uuid), () -> {
+            ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.overallTable + " WHERE id = ?", this.uuidFormat.toSql(uuid));
             try {
                 ResultSet resultSet = connection.rs();
                 if (resultSet.next()) {
@@ -89,10 +134,57 @@ public class TrackerSqlSerializer extends SqlSerializer {
         });
     }
 
+    /**
+     * Loads the records for all the given players.
+     * <p>
+     * Records are queried in chunks, rather than one query per
+     * player. Players who do not have a record are not included
+     * in the result.
+     * <p>
+     * If any chunk fails to load, the returned future completes
+     * exceptionally, as a missing record could otherwise not be told
+     * apart from a player who has no record.
+     *
+     * @param uuids the ids of the players to load the records for
+     * @return the loaded records
+     */
+    public CompletableFuture<List<Record>> loadRecords(Collection<UUID> uuids) {
+        if (uuids.isEmpty()) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+
+        List<UUID> ids = List.copyOf(uuids);
+        return this.supplyAfterPendingSaves(ids, () -> {
+            List<Record> records = new ArrayList<>(ids.size());
+            for (int start = 0; start < ids.size(); start += IN_LIST_CHUNK_SIZE) {
+                List<UUID> chunk = ids.subList(start, Math.min(start + IN_LIST_CHUNK_SIZE, ids.size()));
+                Object[] params = new Object[chunk.size()];
+                for (int i = 0; i < chunk.size(); i++) {
+                    params[i] = this.uuidFormat.toSql(chunk.get(i));
+                }
+
+                String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+                ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.overallTable + " WHERE id IN (" + placeholders + ")", params);
+                try {
+                    ResultSet resultSet = connection.rs();
+                    while (resultSet.next()) {
+                        records.add(this.createRecord(connection));
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException("Failed to load records for " + chunk.size() + " players!", e);
+                } finally {
+                    this.closeConnection(connection);
+                }
+            }
+
+            return records;
+        });
+    }
+
     public CompletableFuture<List<Record>> getTopRecords(int limit, StatType orderBy) {
-        return CompletableFuture.supplyAsync(() -> {
+        return this.getExecutor().supplyAsync(() -> {
             List<Record> records = new ArrayList<>();
-            ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.overallTable + " ORDER BY CAST(" + orderBy.getKey() + " AS REAL) DESC LIMIT ?", limit);
+            ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.overallTable + " ORDER BY " + orderBy.getKey() + " DESC LIMIT ?", limit);
             try {
                 ResultSet resultSet = connection.rs();
                 while (resultSet.next()) {
@@ -108,26 +200,110 @@ public class TrackerSqlSerializer extends SqlSerializer {
         });
     }
 
+    /**
+     * Populates the given leaderboards with the highest ranked
+     * records stored in the database.
+     *
+     * @param leaderboards the leaderboards to populate
+     * @param limit the maximum amount of records to load for each leaderboard
+     * @return a future which completes once the leaderboards are populated
+     */
+    public CompletableFuture<Void> loadLeaderboards(Collection<Leaderboard> leaderboards, int limit) {
+        List<Leaderboard> storedLeaderboards = leaderboards.stream()
+                .filter(leaderboard -> this.overallStats.contains(leaderboard.getStat()))
+                .toList();
+
+        if (storedLeaderboards.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // Start loading before the query is queued, so any player removed
+        // from here on is not added back from a row read before the removal
+        storedLeaderboards.forEach(Leaderboard::beginLoad);
+        return this.getExecutor().runAsync(() -> {
+            for (Leaderboard leaderboard : storedLeaderboards) {
+                String column = leaderboard.getStat().getKey();
+                ResultSetConnection connection = this.executeQuery("SELECT id, " + column + " FROM " + this.overallTable + " ORDER BY " + column + " DESC LIMIT ?", limit);
+                try {
+                    ResultSet resultSet = connection.rs();
+                    while (resultSet.next()) {
+                        leaderboard.updateIfAbsent(this.uuidFormat.fromSql(resultSet, "id"), resultSet.getFloat(column));
+                    }
+                } catch (Exception e) {
+                    BattleTracker.getInstance().error("Failed to load leaderboard {} for {}!", column, this.tracker.getName(), e);
+                } finally {
+                    this.closeConnection(connection);
+                    leaderboard.endLoad();
+                }
+            }
+        }).whenComplete((aVoid, e) -> {
+            // The load never ran if the executor rejected it
+            if (e != null) {
+                BattleTracker.getInstance().error("Failed to load leaderboards for {}!", this.tracker.getName(), e);
+                storedLeaderboards.forEach(Leaderboard::endLoad);
+            }
+        });
+    }
+
     @Blocking
     public Record createRecord(ResultSetConnection connection) throws SQLException {
         ResultSet resultSet = connection.rs();
-        Map<StatType, Float> columns = new HashMap<>();
-        for (String column : this.overallColumns) {
-            columns.put(StatType.get(column), Float.parseFloat(resultSet.getString(column)));
+        StatMap columns = new StatMap();
+        for (int i = 0; i < this.overallStats.size(); i++) {
+            columns.putFloat(this.overallStats.get(i), resultSet.getFloat(this.overallColumns.get(i)));
         }
 
-        return new Record(this.tracker, UUID.fromString(resultSet.getString("id")), resultSet.getString("name"), columns);
+        Record record = new Record(this.tracker, this.uuidFormat.fromSql(resultSet, "id"), resultSet.getString("name"), columns);
+        record.setPersisted(true);
+        return record;
     }
 
     public void removeRecord(UUID uuid) {
-        this.executeUpdate(true, "DELETE FROM " + this.overallTable + " WHERE id = ?", uuid.toString());
+        this.executeUpdate(true, "DELETE FROM " + this.overallTable + " WHERE id = ?", this.uuidFormat.toSql(uuid));
     }
 
-    public CompletableFuture<List<TallyEntry>> loadTallyEntries(UUID uuid) {
-        return CompletableFuture.supplyAsync(() -> {
+    /**
+     * Loads the most recent tally entries of a player recorded at or
+     * before the given time, ordered from the most recent.
+     * <p>
+     * Entries are paged by their timestamp, so each page is read from
+     * the timestamp indexes rather than scanning the player's history.
+     *
+     * @param uuid the UUID of the player to load the tally entries for
+     * @param before the time to load entries at or before, or null to
+     *               load the most recent entries
+     * @param limit the maximum amount of entries to load
+     * @return the loaded tally entries
+     */
+    public CompletableFuture<List<TallyEntry>> loadTallyEntries(UUID uuid, @Nullable Instant before, int limit) {
+        return this.supplyAfterPendingSaves(List.of(uuid), () -> {
             List<TallyEntry> entries = new ArrayList<>();
-            ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.tallyTable + " WHERE id1 = ? OR id2 = ?", uuid.toString(), uuid.toString());
 
+            // Each side is limited on its own so both can read their index in
+            // order; an OR across id1 and id2 would read the whole history
+            String timestampFilter = before == null ? "" : " AND timestamp <= ?";
+            String query = "SELECT * FROM (SELECT * FROM " + this.tallyTable + " WHERE id1 = ?" + timestampFilter + " ORDER BY timestamp DESC LIMIT ?) wins" +
+                    " UNION ALL SELECT * FROM (SELECT * FROM " + this.tallyTable + " WHERE id2 = ? AND id1 <> ?" + timestampFilter + " ORDER BY timestamp DESC LIMIT ?) losses" +
+                    " ORDER BY timestamp DESC LIMIT ?";
+
+            Object id = this.uuidFormat.toSql(uuid);
+            List<Object> params = new ArrayList<>();
+            params.add(id);
+            if (before != null) {
+                params.add(Timestamp.from(before).toString());
+            }
+
+            params.add(limit);
+            params.add(id);
+            params.add(id);
+            if (before != null) {
+                params.add(Timestamp.from(before).toString());
+            }
+
+            params.add(limit);
+            params.add(limit);
+
+            ResultSetConnection connection = this.executeQuery(query, params.toArray());
             try {
                 ResultSet resultSet = connection.rs();
                 while (resultSet.next()) {
@@ -143,21 +319,52 @@ public class TrackerSqlSerializer extends SqlSerializer {
         });
     }
 
+    /**
+     * Loads the most recent tally entries between two players,
+     * ordered from the most recent.
+     *
+     * @param uuid1 the UUID of the first player
+     * @param uuid2 the UUID of the second player
+     * @param limit the maximum amount of entries to load
+     * @return the loaded tally entries
+     */
+    public CompletableFuture<List<TallyEntry>> loadVersusTallyEntries(UUID uuid1, UUID uuid2, int limit) {
+        return this.supplyAfterPendingSaves(List.of(uuid1, uuid2), () -> {
+            List<TallyEntry> entries = new ArrayList<>();
+            Object id1 = this.uuidFormat.toSql(uuid1);
+            Object id2 = this.uuidFormat.toSql(uuid2);
+
+            ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.tallyTable + " WHERE (id1 = ? AND id2 = ?) OR (id1 = ? AND id2 = ?) ORDER BY timestamp DESC LIMIT ?", id1, id2, id2, id1, limit);
+            try {
+                ResultSet resultSet = connection.rs();
+                while (resultSet.next()) {
+                    entries.add(this.createTallyEntry(connection));
+                }
+            } catch (Exception e) {
+                BattleTracker.getInstance().error("Failed to load tally entries for {} and {}!", uuid1, uuid2, e);
+            } finally {
+                this.closeConnection(connection);
+            }
+
+            return entries;
+        });
+    }
+
     @Blocking
     private TallyEntry createTallyEntry(ResultSetConnection connection) throws SQLException {
         ResultSet resultSet = connection.rs();
         return new TallyEntry(
-                UUID.fromString(resultSet.getString("id1")),
-                UUID.fromString(resultSet.getString("id2")),
+                this.uuidFormat.fromSql(resultSet, "id1"),
+                this.uuidFormat.fromSql(resultSet, "id2"),
                 resultSet.getBoolean("tie"),
                 resultSet.getTimestamp("timestamp").toInstant()
         );
     }
 
     public CompletableFuture<VersusTally> loadVersusTally(UUID uuid1, UUID uuid2) {
-        return CompletableFuture.supplyAsync(() -> {
+        return this.supplyAfterPendingSaves(List.of(uuid1, uuid2), () -> {
             // Need to check if both id1 AND id2 = uuid1 or uuid2, or vice versa
-            ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.versusTable + " WHERE (id1 = ? AND id2 = ?) OR (id1 = ? AND id2 = ?)", uuid1.toString(), uuid2.toString(), uuid2.toString(), uuid1.toString());
+            ResultSetConnection connection = this.executeQuery("SELECT * FROM " + this.versusTable + " WHERE (id1 = ? AND id2 = ?) OR (id1 = ? AND id2 = ?)", this.uuidFormat.toSql(uuid1), this.uuidFormat.toSql(uuid2), this.uuidFormat.toSql(uuid2), this.uuidFormat.toSql(uuid1));
 
             try {
                 ResultSet resultSet = connection.rs();
@@ -177,19 +384,14 @@ public class TrackerSqlSerializer extends SqlSerializer {
     @Blocking
     private VersusTally createVersusTally(ResultSetConnection connection) throws SQLException {
         ResultSet resultSet = connection.rs();
-        Map<StatType, Float> columns = new HashMap<>();
-        for (String column : this.versusColumns) {
-            if (column.equalsIgnoreCase("infinity")) { // sometimes kdr gets saved as 'infinity'
-                columns.put(StatType.get(column), Float.POSITIVE_INFINITY);
-                continue;
-            }
-
-            columns.put(StatType.get(column), Float.parseFloat(resultSet.getString(column)));
+        StatMap columns = new StatMap();
+        for (int i = 0; i < this.versusStats.size(); i++) {
+            columns.putFloat(this.versusStats.get(i), resultSet.getFloat(this.versusColumns.get(i)));
         }
 
         return new VersusTally(this.tracker,
-                UUID.fromString(resultSet.getString("id1")),
-                UUID.fromString(resultSet.getString("id2")),
+                this.uuidFormat.fromSql(resultSet, "id1"),
+                this.uuidFormat.fromSql(resultSet, "id2"),
                 columns
         );
     }
@@ -199,72 +401,220 @@ public class TrackerSqlSerializer extends SqlSerializer {
     }
 
     public CompletableFuture<Void> saveAll() {
-        return this.saveTotals(this.tracker.getRecords().keySet().toArray(UUID[]::new));
+        return this.saveTotals(true, this.tracker.getRecords().keySet().toArray(UUID[]::new));
     }
 
     public CompletableFuture<Void> saveTotals(UUID... uuids) {
+        return this.saveTotals(false, uuids);
+    }
+
+    private CompletableFuture<Void> saveTotals(boolean all, UUID... uuids) {
         if (uuids == null || uuids.length == 0) {
             return CompletableFuture.completedFuture(null);
         }
 
+        // Collect all the modified rows up front, so they can be
+        // written in a single transaction rather than one per player
         List<List<Object>> overallBatch = new ArrayList<>();
         List<List<Object>> versusBatch = new ArrayList<>();
         List<List<Object>> tallyBatch = new ArrayList<>();
 
-        List<CompletableFuture<Void>> batches = new ArrayList<>();
+        Map<String, List<List<Object>>> batches = new LinkedHashMap<>();
+        batches.put(this.insertOverallStatement, overallBatch);
+
+        // Values are marked as saved as they are collected, so if the
+        // transaction fails they are marked as unsaved again to be
+        // written on the next save rather than lost
+        List<Runnable> restores = new ArrayList<>();
+        List<Record> insertedRecords = new ArrayList<>();
+
+        // Registered before anything is marked as saved, so a value which
+        // is evicted once saved can not be loaded again before it commits
+        CompletableFuture<Void> saved = new CompletableFuture<>();
         for (UUID uuid : uuids) {
-            Record record = this.tracker.getRecords().getCached(uuid);
-            if (record == null) {
-                BattleTracker.getInstance().warn("Failed to save record for " + uuid + " as they had no record saved.");
-                continue;
+            this.addPendingSave(uuid, saved);
+        }
+
+        Consumer<VersusTally> versusSaver = versusTally -> {
+            restores.add(() -> this.tracker.getTallies().markUnsaved(versusTally));
+            versusBatch.add(this.createVersusRow(versusTally));
+            if (all) {
+                this.addPendingSave(versusTally.id1(), saved);
+                this.addPendingSave(versusTally.id2(), saved);
             }
+        };
+
+        try {
+            for (UUID uuid : uuids) {
+                Record cachedRecord = this.tracker.getRecords().getCached(uuid);
+                if (cachedRecord == null) {
+                    BattleTracker.getInstance().warn("Failed to save record for " + uuid + " as they had no record saved.");
+                    continue;
+                }
+
+                this.tracker.getRecords().save(uuid, record -> {
+                    // Take a consistent copy of the record, as it may be
+                    // modified on another thread while this save runs
+                    Record.Snapshot snapshot = record.snapshotAndClearDirty();
+                    restores.add(() -> {
+                        record.restoreDirty(snapshot);
+                        this.tracker.getRecords().markUnsaved(uuid, record);
+                    });
+
+                    BitSet changedColumns = new BitSet(this.overallStats.size());
+                    for (int i = 0; i < this.overallStats.size(); i++) {
+                        if (snapshot.isDirty(this.overallStats.get(i))) {
+                            changedColumns.set(i);
+                        }
+                    }
+
+                    // Only rewrite the record if a stat we store has changed
+                    if (changedColumns.isEmpty()) {
+                        return;
+                    }
+
+                    // Records which are not in the database yet are always
+                    // written in full, as an update would match no rows
+                    if (this.saveMode == SaveMode.FULL || !record.isPersisted()) {
+                        overallBatch.add(this.createOverallRow(snapshot));
+                        insertedRecords.add(record);
+                    } else {
+                        batches.computeIfAbsent(this.getUpdateOverallStatement(changedColumns), key -> new ArrayList<>())
+                                .add(this.createOverallUpdateRow(snapshot, changedColumns));
+                    }
+                });
 
-            // +2 in array for name and id
-            String[] overallObjectArray = new String[this.overallColumns.size() + 2];
-            overallObjectArray[0] = record.getId().toString();
-            overallObjectArray[1] = record.getName();
-            for (int i = 0; i < this.overallColumns.size(); i++) {
-                String overallColumn = this.overallColumns.get(i);
-                overallObjectArray[i + 2] = record.getStatistics().get(StatType.get(overallColumn)).toString();
+                // When saving everything, all modified tallies are saved
+                // at once below rather than per player
+                if (!all) {
+                    this.tracker.getTallies().save(uuid, versusSaver);
+                }
+
+                this.tracker.getTallyEntries().save(uuid, entry -> {
+                    restores.add(() -> this.tracker.getTallyEntries().markUnsaved(uuid, entry));
+                    tallyBatch.add(this.createTallyRow(entry));
+                });
             }
 
-            overallBatch.add(List.of(overallObjectArray));
-            this.executeBatch(true, this.constructInsertOverallStatement(), overallBatch);
+            if (all) {
+                this.tracker.getTallies().save(versusSaver);
+            }
+        } catch (RuntimeException e) {
+            restores.forEach(Runnable::run);
+            saved.complete(null);
+            return CompletableFuture.failedFuture(e);
+        }
 
-            this.tracker.getTallies().save(versusTally -> {
-                if (!versusTally.id1().equals(uuid) && !versusTally.id2().equals(uuid)) {
+        batches.put(this.insertVersusStatement, versusBatch);
+        batches.put(this.insertTallyStatement, tallyBatch);
+        return this.executeBatches(true, batches).whenComplete((aVoid, e) -> {
+            try {
+                if (e != null) {
+                    BattleTracker.getInstance().warn("Failed to save {} modified entries for {}. They will be saved again on the next save.", restores.size(), this.tracker.getName());
+                    restores.forEach(Runnable::run);
                     return;
                 }
 
-                // +4 in array for double name and id
-                String[] versusObjectArray = new String[this.versusColumns.size() + 2];
-                versusObjectArray[0] = versusTally.id1().toString();
-                versusObjectArray[1] = versusTally.id2().toString();
-
-                for (int i = 0; i < this.versusColumns.size(); i++) {
-                    String versusColumn = this.versusColumns.get(i);
-                    versusObjectArray[i + 2] = Optional.ofNullable(versusTally.statistics().get(StatType.get(versusColumn))).orElse(0f).toString();
+                for (Record record : insertedRecords) {
+                    record.setPersisted(true);
                 }
+            } finally {
+                saved.complete(null);
+            }
+        });
+    }
+
+    private void addPendingSave(UUID uuid, CompletableFuture<Void> save) {
+        CompletableFuture<Void> pending = this.pendingSaves.compute(uuid, (key, previous) -> {
+            if (previous == null || previous == save || previous.isDone()) {
+                return save;
+            }
 
-                versusBatch.add(List.of(versusObjectArray));
-                batches.add(this.executeBatch(true, this.constructInsertVersusStatement(), versusBatch));
-            });
+            return CompletableFuture.allOf(previous, save);
+        });
+
+        pending.whenComplete((aVoid, e) -> this.pendingSaves.remove(uuid, pending));
+    }
+
+    /**
+     * Runs the given query once any pending saves for the given
+     * players have completed, so it reads what they have written.
+     *
+     * @param uuids the players the query reads
+     * @param supplier the query to run
+     * @return the result of the query
+     * @param <T> the result type of the query
+     */
+    private <T> CompletableFuture<T> supplyAfterPendingSaves(Collection<UUID> uuids, Supplier<T> supplier) {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            CompletableFuture<Void> save = this.pendingSaves.get(uuid);
+            if (save != null) {
+                pending.add(save);
+            }
+        }
 
-            this.tracker.getTallyEntries().save(uuid, entry -> {
-                String[] tallyObjectArray = new String[4];
-                tallyObjectArray[0] = entry.id1().toString();
-                tallyObjectArray[1] = entry.id2().toString();
-                tallyObjectArray[2] = entry.tie() ? "1" : "0";
-                tallyObjectArray[3] = Timestamp.from(entry.timestamp()).toString();
+        if (pending.isEmpty()) {
+            return this.getExecutor().supplyAsync(supplier);
+        }
+
+        return CompletableFuture.allOf(pending.toArray(CompletableFuture[]::new))
+                .handle((aVoid, e) -> null)
+                .thenCompose(aVoid -> this.getExecutor().supplyAsync(supplier));
+    }
+
+    private List<Object> createOverallRow(Record.Snapshot record) {
+        // +2 in array for name and id
+        Object[] overallObjectArray = new Object[this.overallColumns.size() + 2];
+        overallObjectArray[0] = this.uuidFormat.toSql(record.id());
+        overallObjectArray[1] = record.name();
+        for (int i = 0; i < this.overallStats.size(); i++) {
+            overallObjectArray[i + 2] = toColumnValue(record.getStat(this.overallStats.get(i)));
+        }
+
+        return List.of(overallObjectArray);
+    }
 
-                // Use Arrays.asList instead of List.of to correctly convert the String[] into a List<String>
-                // List.of(tallyObjectArray) would treat the array as a single element, causing SQL parameter mismatch
-                tallyBatch.add(java.util.Arrays.asList(tallyObjectArray));
-                batches.add(this.executeBatch(true, this.constructInsertTallyStatement(), tallyBatch));
-            });
+    private List<Object> createOverallUpdateRow(Record.Snapshot record, BitSet changedColumns) {
+        // +2 in array for name and id
+        Object[] overallObjectArray = new Object[changedColumns.cardinality() + 2];
+        int index = 0;
+        for (int i = changedColumns.nextSetBit(0); i >= 0; i = changedColumns.nextSetBit(i + 1)) {
+            overallObjectArray[index++] = toColumnValue(record.getStat(this.overallStats.get(i)));
         }
 
-        return CompletableFuture.allOf(batches.toArray(CompletableFuture[]::new));
+        overallObjectArray[index++] = record.name();
+        overallObjectArray[index] = this.uuidFormat.toSql(record.id());
+        return List.of(overallObjectArray);
+    }
+
+    private List<Object> createVersusRow(VersusTally versusTally) {
+        // +2 in array for both ids
+        Object[] versusObjectArray = new Object[this.versusColumns.size() + 2];
+        versusObjectArray[0] = this.uuidFormat.toSql(versusTally.id1());
+        versusObjectArray[1] = this.uuidFormat.toSql(versusTally.id2());
+
+        for (int i = 0; i < this.versusStats.size(); i++) {
+            versusObjectArray[i + 2] = toColumnValue(versusTally.getStat(this.versusStats.get(i)));
+        }
+
+        return List.of(versusObjectArray);
+    }
+
+    private List<Object> createTallyRow(TallyEntry entry) {
+        Object[] tallyObjectArray = new Object[4];
+        tallyObjectArray[0] = this.uuidFormat.toSql(entry.id1());
+        tallyObjectArray[1] = this.uuidFormat.toSql(entry.id2());
+        tallyObjectArray[2] = entry.tie() ? "1" : "0";
+        tallyObjectArray[3] = Timestamp.from(entry.timestamp()).toString();
+
+        // Use Arrays.asList instead of List.of to correctly convert the Object[] into a List<Object>
+        // List.of(tallyObjectArray) would treat the array as a single element, causing SQL parameter mismatch
+        return Arrays.asList(tallyObjectArray);
+    }
+
+    public List<StatType> getOverallStats() {
+        return this.overallStats;
     }
 
     public List<String> getOverallColumns() {
@@ -315,6 +665,20 @@ public class TrackerSqlSerializer extends SqlSerializer {
         return builder.toString();
     }
 
+    private String getUpdateOverallStatement(BitSet changedColumns) {
+        return this.updateOverallStatements.computeIfAbsent(changedColumns, this::constructUpdateOverallStatement);
+    }
+
+    private String constructUpdateOverallStatement(BitSet changedColumns) {
+        StringBuilder builder = new StringBuilder("UPDATE ").append(this.overallTable).append(" SET ");
+        for (int i = changedColumns.nextSetBit(0); i >= 0; i = changedColumns.nextSetBit(i + 1)) {
+            builder.append(this.overallColumns.get(i)).append(" = ?, ");
+        }
+
+        builder.append("name = ? WHERE id = ?");
+        return builder.toString();
+    }
+
     private String constructInsertVersusStatement() {
         StringBuilder builder = new StringBuilder();
         switch (this.getType()) {
@@ -367,72 +731,388 @@ public class TrackerSqlSerializer extends SqlSerializer {
 
     @Blocking
     private void setupOverallTable() {
-        String createOverall = "CREATE TABLE IF NOT EXISTS " + this.overallTable + " ("
-                + "id VARCHAR(" + MAX_LENGTH + "), name VARCHAR(" + MAX_LENGTH + "), ";
+        try {
+            if (Boolean.TRUE.equals(this.hasTable(this.overallTable))) {
+                this.migrateBinaryIds(this.overallTable, this.constructCreateOverallStatement(this.overallTable + "_migrated"), List.of("id"), List.of("id"), this.overallColumns);
+                this.migrateNumericColumns(this.overallTable, this.constructCreateOverallStatement(this.overallTable), List.of("id", "name"), this.overallColumns);
+            }
+
+            this.createTable(this.overallTable, this.constructCreateOverallStatement(this.overallTable));
+
+            // Index the rating column, as this is what leaderboards are sorted by
+            if (this.getType() == SqlType.SQLITE && this.overallColumns.contains(StatType.RATING.getKey())) {
+                this.executeUpdate("CREATE INDEX IF NOT EXISTS " + this.overallTable + "_rating_index ON " + this.overallTable + " (" + StatType.RATING.getKey() + ")");
+            }
+        } catch (Exception e) {
+            BattleTracker.getInstance().error("Failed to create tables!", e);
+        }
+    }
+
+    private String constructCreateOverallStatement(String tableName) {
+        String createOverall = "CREATE TABLE IF NOT EXISTS " + tableName + " ("
+                + "id " + this.uuidFormat.getColumnType(this.getType()) + ", name VARCHAR(" + MAX_LENGTH + "), ";
 
         StringBuilder createStringBuilder = new StringBuilder();
         createStringBuilder.append(createOverall);
         for (String column : this.overallColumns) {
-            createStringBuilder.append(column).append(" VARCHAR(").append(MAX_LENGTH).append("), ");
+            createStringBuilder.append(column).append(" ").append(STAT_COLUMN_TYPE).append(", ");
         }
 
-        createStringBuilder.append(" PRIMARY KEY (id))");
+        createStringBuilder.append(" PRIMARY KEY (id)");
+        if (this.getType() == SqlType.MYSQL && this.overallColumns.contains(StatType.RATING.getKey())) {
+            createStringBuilder.append(", INDEX (").append(StatType.RATING.getKey()).append(")");
+        }
+
+        createStringBuilder.append(")");
+        return createStringBuilder.toString();
+    }
 
+    @Blocking
+    private void setupVersusTable() {
         try {
-            this.createTable(this.overallTable, createStringBuilder.toString());
+            if (Boolean.TRUE.equals(this.hasTable(this.versusTable))) {
+                this.migrateBinaryIds(this.versusTable, this.constructCreateVersusStatement(this.versusTable + "_migrated"), List.of("id1", "id2"), List.of("id1", "id2"), this.versusColumns);
+                this.migrateNumericColumns(this.versusTable, this.constructCreateVersusStatement(this.versusTable), List.of("id1", "id2"), this.versusColumns);
+            }
+
+            this.createTable(this.versusTable, this.constructCreateVersusStatement(this.versusTable));
         } catch (Exception e) {
             BattleTracker.getInstance().error("Failed to create tables!", e);
         }
     }
 
-    @Blocking
-    private void setupVersusTable() {
-        String createVersus = "CREATE TABLE IF NOT EXISTS " + this.versusTable + "(" +
-                "id1 VARCHAR (" + MAX_LENGTH + ") NOT NULL," +
-                "id2 VARCHAR (" + MAX_LENGTH + ") NOT NULL, ";
+    private String constructCreateVersusStatement(String tableName) {
+        String createVersus = "CREATE TABLE IF NOT EXISTS " + tableName + "(" +
+                "id1 " + this.uuidFormat.getColumnType(this.getType()) + " NOT NULL," +
+                "id2 " + this.uuidFormat.getColumnType(this.getType()) + " NOT NULL, ";
 
         StringBuilder createStringBuilder = new StringBuilder();
         createStringBuilder.append(createVersus);
         for (String column : this.versusColumns) {
-            createStringBuilder.append(column)
-                    .append(" VARCHAR(").append(MAX_LENGTH).append("), ");
+            createStringBuilder.append(column).append(" ").append(STAT_COLUMN_TYPE).append(", ");
         }
 
         createStringBuilder.append(" PRIMARY KEY (id1, id2))");
+        return createStringBuilder.toString();
+    }
+
+    /**
+     * Migrates the stat columns of a table created by an older version
+     * of BattleTracker, which stored every stat as a string, to numeric
+     * columns.
+     * <p>
+     * On SQLite the migration runs in a single transaction. MySQL commits
+     * implicitly when altering a table, so there values which can not be
+     * converted may already have been reset if changing the column types
+     * fails.
+     *
+     * @param table the table to migrate
+     * @param createStatement the statement to create the table with numeric columns
+     * @param keyColumns the non-stat columns of the table
+     * @param statColumns the stat columns of the table
+     */
+    @Blocking
+    private void migrateNumericColumns(String table, String createStatement, List<String> keyColumns, List<String> statColumns) {
+        Map<String, String> columnTypes = new LinkedHashMap<>();
+        for (String column : statColumns) {
+            String columnType = this.getColumnType(table, column);
+            if (columnType != null) {
+                columnTypes.put(column, columnType);
+            }
+        }
+
+        List<String> existingColumns = columnTypes.keySet().stream()
+                .filter(column -> this.isTextColumn(columnTypes.get(column)))
+                .toList();
+
+        if (existingColumns.isEmpty()) {
+            return;
+        }
+
+        BattleTracker.getInstance().info("Migrating {} stat columns in table {} to numeric columns...", existingColumns.size(), table);
+
+        List<String> statements = new ArrayList<>();
+
+        // Older versions could write non-numeric values, which can not be
+        // converted, so reset these before changing the column types. MySQL
+        // rejects any value which is not a number in strict mode, while
+        // SQLite converts these to 0 itself when casting
+        for (String column : existingColumns) {
+            String invalidValues = switch (this.getType()) {
+                case MYSQL -> column + " NOT REGEXP '" + NUMERIC_PATTERN + "'";
+                case SQLITE -> column + " IN ('Infinity', '-Infinity', 'NaN')";
+            };
+
+            statements.add("UPDATE " + table + " SET " + column + " = '0' WHERE " + column + " IS NULL OR " + invalidValues);
+        }
+
+        switch (this.getType()) {
+            case MYSQL -> {
+                StringBuilder builder = new StringBuilder("ALTER TABLE ").append(table).append(" ");
+                for (String column : existingColumns) {
+                    builder.append("MODIFY ").append(column).append(" ").append(STAT_COLUMN_TYPE).append(", ");
+                }
+
+                if (existingColumns.contains(StatType.RATING.getKey())) {
+                    builder.append("ADD INDEX (").append(StatType.RATING.getKey()).append("), ");
+                }
+
+                statements.add(builder.substring(0, builder.length() - 2));
+            }
+            case SQLITE -> {
+                // SQLite does not support changing column types, so
+                // the table needs to be rebuilt with the new types
+                String oldTable = table + "_old";
+                List<String> copiedColumns = new ArrayList<>(keyColumns);
+                copiedColumns.addAll(columnTypes.keySet());
+
+                String selectColumns = copiedColumns.stream()
+                        .map(column -> existingColumns.contains(column) ? "CAST(" + column + " AS REAL)" : column)
+                        .collect(Collectors.joining(", "));
+
+                statements.add("ALTER TABLE " + table + " RENAME TO " + oldTable);
+                statements.add(createStatement);
+                statements.add("INSERT INTO " + table + " (" + String.join(", ", copiedColumns) + ") SELECT " + selectColumns + " FROM " + oldTable);
+                statements.add("DROP TABLE " + oldTable);
+            }
+        }
 
         try {
-            this.createTable(this.versusTable, createStringBuilder.toString());
+            this.executeUpdates(statements);
+            BattleTracker.getInstance().info("Migrated table {} to numeric columns.", table);
         } catch (Exception e) {
-            BattleTracker.getInstance().error("Failed to create tables!", e);
+            BattleTracker.getInstance().error("Failed to migrate table {} to numeric columns!", table, e);
         }
     }
 
+    private boolean isTextColumn(@Nullable String columnType) {
+        if (columnType == null) {
+            return false;
+        }
+
+        String type = columnType.toLowerCase(Locale.ROOT);
+        return type.contains("char") || type.contains("text");
+    }
+
     @Blocking
     private void setupTallyTable() {
-        String createTally = "CREATE TABLE IF NOT EXISTS " + this.tallyTable + "(" +
-                "id1 VARCHAR (" + MAX_LENGTH + ") NOT NULL, " +
-                "id2 VARCHAR (" + MAX_LENGTH + ") NOT NULL, " +
+        try {
+            if (Boolean.TRUE.equals(this.hasTable(this.tallyTable))) {
+                this.migrateBinaryIds(this.tallyTable, this.constructCreateTallyStatement(this.tallyTable + "_migrated"), List.of("id1", "id2", "timestamp"), List.of("id1", "id2"), List.of());
+            }
+
+            this.createTable(this.tallyTable, this.constructCreateTallyStatement(this.tallyTable));
+            if (this.getType() == SqlType.SQLITE) {
+                this.executeUpdate("CREATE INDEX IF NOT EXISTS id1_index ON " + this.tallyTable + " (id1)");
+                this.executeUpdate("CREATE INDEX IF NOT EXISTS id2_index ON " + this.tallyTable + " (id2)");
+                this.executeUpdate("CREATE INDEX IF NOT EXISTS " + this.tallyTable + "_id1_timestamp_index ON " + this.tallyTable + " (id1, timestamp)");
+                this.executeUpdate("CREATE INDEX IF NOT EXISTS " + this.tallyTable + "_id2_timestamp_index ON " + this.tallyTable + " (id2, timestamp)");
+            } else if (this.getType() == SqlType.MYSQL) {
+                // Tables created before the timestamp indexes were added to the
+                // create statement do not have them, and MySQL has no IF NOT EXISTS
+                if (!this.hasIndex(this.tallyTable, "id1", "timestamp")) {
+                    this.executeUpdate("ALTER TABLE " + this.tallyTable + " ADD INDEX " + this.tallyTable + "_id1_timestamp_index (id1, timestamp)");
+                }
+
+                if (!this.hasIndex(this.tallyTable, "id2", "timestamp")) {
+                    this.executeUpdate("ALTER TABLE " + this.tallyTable + " ADD INDEX " + this.tallyTable + "_id2_timestamp_index (id2, timestamp)");
+                }
+            }
+        } catch (Exception e) {
+            BattleTracker.getInstance().error("Failed to create tables!");
+        }
+    }
+
+    private String constructCreateTallyStatement(String tableName) {
+        String createTally = "CREATE TABLE IF NOT EXISTS " + tableName + "(" +
+                "id1 " + this.uuidFormat.getColumnType(this.getType()) + " NOT NULL, " +
+                "id2 " + this.uuidFormat.getColumnType(this.getType()) + " NOT NULL, " +
                 "tie BOOLEAN DEFAULT FALSE, " +
                 "timestamp TIMESTAMP NOT NULL, " +
                 "PRIMARY KEY (id1, id2, timestamp)";
 
         if (this.getType() == SqlType.MYSQL) {
-            createTally += ", INDEX (id1), INDEX (id2))";
+            createTally += ", INDEX (id1, timestamp), INDEX (id2, timestamp))";
         } else {
             createTally += ")";
         }
 
-        try {
-            this.createTable(this.tallyTable, createTally);
-            if (this.getType() == SqlType.SQLITE) {
-                this.executeUpdate("CREATE INDEX IF NOT EXISTS id1_index ON " + this.tallyTable + " (id1)");
-                this.executeUpdate("CREATE INDEX IF NOT EXISTS id2_index ON " + this.tallyTable + " (id2)");
+        return createTally;
+    }
+
+    /**
+     * Migrates a table which stores player ids as strings to store
+     * them in the binary format, if enabled.
+     * <p>
+     * Rows are copied into a new table a page at a time, ordered by the
+     * primary key, so the table is never held in memory at once. The new
+     * table only replaces the existing one once every row has been copied,
+     * so a failed copy leaves the existing table intact, and the copy is
+     * started over on the next startup. On MySQL the tables are swapped
+     * in a single atomic rename, as creating and renaming tables commits
+     * implicitly there.
+     *
+     * @param table the table to migrate
+     * @param createStatement the statement to create the new table
+     * @param keyColumns the primary key columns of the table
+     * @param idColumns the columns storing player ids
+     * @param statColumns the stat columns of the table
+     */
+    @Blocking
+    private void migrateBinaryIds(String table, String createStatement, List<String> keyColumns, List<String> idColumns, List<String> statColumns) {
+        if (this.uuidFormat != UuidFormat.BINARY || !this.isTextColumn(this.getColumnType(table, idColumns.get(0)))) {
+            return;
+        }
+
+        BattleTracker.getInstance().info("Migrating table {} to binary player ids. This may take a while...", table);
+
+        String migratedTable = table + "_migrated";
+        String oldTable = table + "_old";
+
+        Connection con = this.getConnection(true, false);
+        if (con == null) {
+            BattleTracker.getInstance().error("Could not get connection to migrate table {}!", table);
+            return;
+        }
+
+        String keys = String.join(", ", keyColumns);
+        String keyPlaceholders = String.join(", ", Collections.nCopies(keyColumns.size(), "?"));
+        String firstPage = "SELECT * FROM " + table + " ORDER BY " + keys + " LIMIT " + MIGRATION_BATCH_SIZE;
+        String nextPage = "SELECT * FROM " + table + " WHERE (" + keys + ") > (" + keyPlaceholders + ") ORDER BY " + keys + " LIMIT " + MIGRATION_BATCH_SIZE;
+
+        int rows = 0;
+        try (Statement statement = con.createStatement()) {
+            statement.executeUpdate("DROP TABLE IF EXISTS " + migratedTable);
+            statement.executeUpdate(createStatement);
+            con.commit();
+
+            List<String> columns = null;
+            PreparedStatement insert = null;
+            Object[] lastKey = null;
+            try {
+                while (true) {
+                    int pageRows = 0;
+                    try (PreparedStatement select = con.prepareStatement(lastKey == null ? firstPage : nextPage)) {
+                        for (int i = 0; lastKey != null && i < lastKey.length; i++) {
+                            select.setObject(i + 1, lastKey[i]);
+                        }
+
+                        try (ResultSet resultSet = select.executeQuery()) {
+                            if (columns == null) {
+                                ResultSetMetaData metaData = resultSet.getMetaData();
+                                columns = new ArrayList<>();
+                                for (int i = 1; i <= metaData.getColumnCount(); i++) {
+                                    columns.add(metaData.getColumnName(i));
+                                }
+
+                                insert = con.prepareStatement("INSERT INTO " + migratedTable + " (" + String.join(", ", columns) + ") VALUES ("
+                                        + String.join(", ", Collections.nCopies(columns.size(), "?")) + ")");
+                            }
+
+                            lastKey = new Object[keyColumns.size()];
+                            while (resultSet.next()) {
+                                for (int i = 0; i < columns.size(); i++) {
+                                    String column = columns.get(i);
+                                    Object value;
+                                    if (idColumns.contains(column)) {
+                                        value = this.uuidFormat.toSql(UUID.fromString(resultSet.getString(column)));
+                                    } else if (statColumns.contains(column)) {
+                                        value = parseColumnValue(resultSet.getString(column));
+                                    } else {
+                                        value = resultSet.getObject(column);
+                                    }
+
+                                    insert.setObject(i + 1, value);
+                                }
+
+                                for (int i = 0; i < keyColumns.size(); i++) {
+                                    lastKey[i] = resultSet.getObject(keyColumns.get(i));
+                                }
+
+                                insert.addBatch();
+                                pageRows++;
+                            }
+                        }
+                    }
+
+                    if (pageRows == 0) {
+                        break;
+                    }
+
+                    // Commit each page, so the transaction does not grow
+                    // with the table. The new table is only swapped in once
+                    // every page has been copied
+                    insert.executeBatch();
+                    con.commit();
+
+                    rows += pageRows;
+                    if (pageRows < MIGRATION_BATCH_SIZE) {
+                        break;
+                    }
+                }
+            } finally {
+                if (insert != null) {
+                    insert.close();
+                }
+            }
+
+            switch (this.getType()) {
+                case MYSQL -> statement.executeUpdate("RENAME TABLE " + table + " TO " + oldTable + ", " + migratedTable + " TO " + table);
+                case SQLITE -> {
+                    statement.executeUpdate("ALTER TABLE " + table + " RENAME TO " + oldTable);
+                    statement.executeUpdate("ALTER TABLE " + migratedTable + " RENAME TO " + table);
+                }
             }
+
+            statement.executeUpdate("DROP TABLE " + oldTable);
+
+            con.commit();
+            BattleTracker.getInstance().info("Migrated {} rows in table {} to binary player ids.", rows, table);
         } catch (Exception e) {
-            BattleTracker.getInstance().error("Failed to create tables!");
+            try {
+                con.rollback();
+            } catch (SQLException ex) {
+                BattleTracker.getInstance().error("Could not roll back transaction", ex);
+            }
+
+            BattleTracker.getInstance().error("Failed to migrate table {} to binary player ids!", table, e);
+        } finally {
+            this.closeConnection(con);
         }
     }
 
+    private static float parseColumnValue(@Nullable String value) {
+        if (value == null) {
+            return 0;
+        }
+
+        try {
+            return toColumnValue(Float.parseFloat(value));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static float toColumnValue(float value) {
+        // Infinite values can not be stored in numeric columns
+        return Float.isFinite(value) ? value : 0;
+    }
+
+    /**
+     * The mode used when saving modified records.
+     */
+    public enum SaveMode {
+        /**
+         * Every column of a modified record is written.
+         */
+        FULL,
+        /**
+         * Only the changed columns of an existing record are written,
+         * with new records being written in full.
+         */
+        PARTIAL
+    }
+
     public interface SqlSupplier<T> {
 
         T get() throws SQLException;
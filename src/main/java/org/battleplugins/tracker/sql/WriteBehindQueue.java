@@ -0,0 +1,203 @@
+package org.battleplugins.tracker.sql;
+
+import org.battleplugins.tracker.BattleTracker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * A write-behind queue for modified cache entries.
+ * <p>
+ * Keys are enqueued when the value they point to is modified, and are
+ * flushed to the database in batches once either the batch size is
+ * reached or the oldest key in the queue has waited longer than the
+ * maximum delay, whichever comes first. This bounds how much data can
+ * be lost in the event of a crash, and spreads out the load which would
+ * otherwise occur when saving everything at once.
+ *
+ * @param <K> the key type of the queue
+ */
+public final class WriteBehindQueue<K> {
+    private final String name;
+    private final int batchSize;
+    private final long maxDelay;
+    private final Function<Collection<K>, CompletableFuture<Void>> flusher;
+
+    private final Queue<QueuedKey<K>> queue = new ConcurrentLinkedQueue<>();
+    private final Set<K> queuedKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedKeys = new AtomicLong();
+    private volatile long lastFlushLatency;
+    private volatile long maxFlushLatency;
+
+    /**
+     * Creates a new write-behind queue.
+     *
+     * @param name the name of the queue, used for logging
+     * @param batchSize the maximum amount of keys to flush at once
+     * @param maxDelay the maximum time, in milliseconds, a key may wait before being flushed
+     * @param flusher the function to save the given keys to the database. If
+     *                the returned future fails, the flusher must leave the
+     *                entries of the keys marked as unsaved so they can be retried
+     */
+    public WriteBehindQueue(String name, int batchSize, long maxDelay, Function<Collection<K>, CompletableFuture<Void>> flusher) {
+        this.name = name;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelay = maxDelay;
+        this.flusher = flusher;
+    }
+
+    /**
+     * Enqueues a key to be flushed.
+     * <p>
+     * If the key is already in the queue, this method does nothing, and
+     * the key retains its original position.
+     *
+     * @param key the key to enqueue
+     */
+    public void enqueue(K key) {
+        if (!this.queuedKeys.add(key)) {
+            return;
+        }
+
+        this.queue.add(new QueuedKey<>(key, System.currentTimeMillis()));
+        if (this.depth.incrementAndGet() >= this.batchSize) {
+            this.drain();
+        }
+    }
+
+    /**
+     * Checks whether the oldest key in the queue has exceeded the
+     * maximum delay, and flushes the queue if so.
+     * <p>
+     * This should be called periodically.
+     */
+    public void tick() {
+        if (this.isFlushDue()) {
+            this.drain();
+        }
+    }
+
+    /**
+     * Returns the amount of keys currently waiting to be flushed.
+     *
+     * @return the amount of keys waiting to be flushed
+     */
+    public int getQueueDepth() {
+        return this.depth.get();
+    }
+
+    /**
+     * Returns how long the last flush took, in milliseconds.
+     *
+     * @return how long the last flush took
+     */
+    public long getLastFlushLatency() {
+        return this.lastFlushLatency;
+    }
+
+    /**
+     * Returns the longest a flush has taken, in milliseconds.
+     *
+     * @return the longest a flush has taken
+     */
+    public long getMaxFlushLatency() {
+        return this.maxFlushLatency;
+    }
+
+    /**
+     * Returns the amount of flushes performed by this queue.
+     *
+     * @return the amount of flushes performed
+     */
+    public long getFlushCount() {
+        return this.flushCount.get();
+    }
+
+    /**
+     * Returns the total amount of keys flushed by this queue.
+     *
+     * @return the total amount of keys flushed
+     */
+    public long getFlushedKeys() {
+        return this.flushedKeys.get();
+    }
+
+    private boolean isFlushDue() {
+        if (this.depth.get() >= this.batchSize) {
+            return true;
+        }
+
+        QueuedKey<K> head = this.queue.peek();
+        return head != null && System.currentTimeMillis() - head.enqueuedAt() >= this.maxDelay;
+    }
+
+    private void drain() {
+        // Only one batch is flushed at a time; the next batch will be
+        // picked up once the current one completes
+        if (!this.flushing.compareAndSet(false, true)) {
+            return;
+        }
+
+        List<K> batch = new ArrayList<>(this.batchSize);
+        QueuedKey<K> queuedKey;
+        while (batch.size() < this.batchSize && (queuedKey = this.queue.poll()) != null) {
+            this.queuedKeys.remove(queuedKey.key());
+            this.depth.decrementAndGet();
+
+            batch.add(queuedKey.key());
+        }
+
+        if (batch.isEmpty()) {
+            this.flushing.set(false);
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        CompletableFuture<Void> future;
+        try {
+            future = this.flusher.apply(batch);
+        } catch (Exception e) {
+            future = CompletableFuture.failedFuture(e);
+        }
+
+        future.whenComplete((aVoid, e) -> {
+            long latency = System.currentTimeMillis() - startTime;
+            this.lastFlushLatency = latency;
+            this.maxFlushLatency = Math.max(this.maxFlushLatency, latency);
+            this.flushCount.incrementAndGet();
+
+            if (e != null) {
+                BattleTracker.getInstance().error("Failed to flush {} queued entries for {}! Retrying on the next flush.", batch.size(), this.name, e);
+
+                // The flusher marks the entries of a failed batch as unsaved
+                // again, so queue them up to be written on the next flush
+                batch.forEach(this::enqueue);
+            } else {
+                this.flushedKeys.addAndGet(batch.size());
+                BattleTracker.getInstance().debug("Write-behind: Flushed {} entries for {} in {}ms ({} queued).", batch.size(), this.name, latency, this.depth.get());
+            }
+
+            this.flushing.set(false);
+            if (e == null && this.isFlushDue()) {
+                this.drain();
+            }
+        });
+    }
+
+    private record QueuedKey<K>(K key, long enqueuedAt) {
+    }
+}
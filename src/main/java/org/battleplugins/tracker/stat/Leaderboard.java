@@ -0,0 +1,364 @@
+package org.battleplugins.tracker.stat;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A ranking of players by the value of a single {@link StatType}.
+ * <p>
+ * Entries are kept in an order-statistic tree, ordered from the highest
+ * value to the lowest, so the top entries, the rank of a player and the
+ * player at a given rank can all be looked up in logarithmic time
+ * without needing to sort or query the database.
+ * <p>
+ * Leaderboards may be limited to a maximum amount of players, in
+ * which case the lowest ranked player is dropped once it is exceeded.
+ */
+public final class Leaderboard {
+    private final StatType stat;
+    private final int maxSize;
+    private final Map<UUID, Node> nodes = new HashMap<>();
+    // Players removed while the leaderboard is being loaded
+    private final Set<UUID> removedWhileLoading = new HashSet<>();
+
+    private Node root;
+    private boolean loading;
+
+    public Leaderboard(StatType stat) {
+        this(stat, Integer.MAX_VALUE);
+    }
+
+    public Leaderboard(StatType stat, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Maximum size must be positive!");
+        }
+
+        this.stat = stat;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the {@link StatType} this leaderboard ranks by.
+     *
+     * @return the stat this leaderboard ranks by
+     */
+    public StatType getStat() {
+        return this.stat;
+    }
+
+    /**
+     * Sets the value of the given player, adding them to the
+     * leaderboard if they are not already on it.
+     *
+     * @param id the id of the player
+     * @param value the value of the player
+     */
+    public synchronized void update(UUID id, float value) {
+        Node node = this.nodes.get(id);
+        if (node != null) {
+            if (Float.compare(node.value, value) == 0) {
+                return;
+            }
+
+            this.root = remove(this.root, node);
+        }
+
+        node = new Node(id, value);
+        this.nodes.put(id, node);
+        this.root = insert(this.root, node);
+
+        if (this.nodes.size() > this.maxSize) {
+            this.removeLowest();
+        }
+    }
+
+    private void removeLowest() {
+        Node lowest = this.root;
+        while (lowest.right != null) {
+            lowest = lowest.right;
+        }
+
+        this.nodes.remove(lowest.id);
+        this.root = remove(this.root, lowest);
+    }
+
+    /**
+     * Adds the given player to the leaderboard, if they are
+     * not already on it.
+     * <p>
+     * This is used when populating the leaderboard from the
+     * database, where values may be older than the ones
+     * already on the leaderboard.
+     *
+     * @param id the id of the player
+     * @param value the value of the player
+     */
+    public synchronized void updateIfAbsent(UUID id, float value) {
+        if (!this.nodes.containsKey(id) && !this.removedWhileLoading.contains(id)) {
+            this.update(id, value);
+        }
+    }
+
+    /**
+     * Marks the start of populating the leaderboard from the database.
+     * <p>
+     * Until {@link #endLoad()} is called, players which are removed
+     * are not added back by {@link #updateIfAbsent(UUID, float)}, as
+     * their value may have been read before they were removed.
+     */
+    public synchronized void beginLoad() {
+        this.loading = true;
+    }
+
+    /**
+     * Marks the end of populating the leaderboard from the database.
+     */
+    public synchronized void endLoad() {
+        this.loading = false;
+        this.removedWhileLoading.clear();
+    }
+
+    /**
+     * Removes the given player from the leaderboard.
+     *
+     * @param id the id of the player
+     */
+    public synchronized void remove(UUID id) {
+        if (this.loading) {
+            this.removedWhileLoading.add(id);
+        }
+
+        Node node = this.nodes.remove(id);
+        if (node != null) {
+            this.root = remove(this.root, node);
+        }
+    }
+
+    /**
+     * Returns the ids of the highest ranked players.
+     *
+     * @param limit the maximum amount of players to return
+     * @return the ids of the highest ranked players, in order
+     */
+    public synchronized List<UUID> getTop(int limit) {
+        List<UUID> top = new ArrayList<>(Math.max(0, Math.min(limit, size(this.root))));
+        Deque<Node> stack = new ArrayDeque<>();
+        Node node = this.root;
+        while ((node != null || !stack.isEmpty()) && top.size() < limit) {
+            while (node != null) {
+                stack.push(node);
+                node = node.left;
+            }
+
+            node = stack.pop();
+            top.add(node.id);
+            node = node.right;
+        }
+
+        return top;
+    }
+
+    /**
+     * Returns the rank of the given player, starting at 1.
+     *
+     * @param id the id of the player
+     * @return the rank of the player, or -1 if they are not on the leaderboard
+     */
+    public synchronized int getRank(UUID id) {
+        Node target = this.nodes.get(id);
+        if (target == null) {
+            return -1;
+        }
+
+        int rank = 1;
+        Node node = this.root;
+        while (node != null) {
+            int compare = compare(target, node);
+            if (compare == 0) {
+                return rank + size(node.left);
+            }
+
+            if (compare < 0) {
+                node = node.left;
+            } else {
+                rank += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Returns the id of the player at the given rank.
+     *
+     * @param rank the rank, starting at 1
+     * @return the id of the player at the given rank, or null if there is none
+     */
+    @Nullable
+    public synchronized UUID getAt(int rank) {
+        int index = rank - 1;
+        Node node = this.root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (index == leftSize) {
+                return node.id;
+            }
+
+            if (index < leftSize) {
+                node = node.left;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the value of the given player on this leaderboard.
+     *
+     * @param id the id of the player
+     * @return the value of the player, or 0 if they are not on the leaderboard
+     */
+    public synchronized float getValue(UUID id) {
+        Node node = this.nodes.get(id);
+        return node == null ? 0 : node.value;
+    }
+
+    /**
+     * Returns the amount of players on the leaderboard.
+     *
+     * @return the amount of players on the leaderboard
+     */
+    public synchronized int size() {
+        return this.nodes.size();
+    }
+
+    private static Node insert(Node root, Node node) {
+        if (root == null) {
+            return node;
+        }
+
+        if (node.priority > root.priority) {
+            Node[] split = split(root, node);
+            node.left = split[0];
+            node.right = split[1];
+            node.updateSize();
+            return node;
+        }
+
+        if (compare(node, root) < 0) {
+            root.left = insert(root.left, node);
+        } else {
+            root.right = insert(root.right, node);
+        }
+
+        root.updateSize();
+        return root;
+    }
+
+    private static Node remove(Node root, Node node) {
+        if (root == null) {
+            return null;
+        }
+
+        if (root == node) {
+            return merge(root.left, root.right);
+        }
+
+        if (compare(node, root) < 0) {
+            root.left = remove(root.left, node);
+        } else {
+            root.right = remove(root.right, node);
+        }
+
+        root.updateSize();
+        return root;
+    }
+
+    // Splits the tree into nodes ranked above the given node, and nodes ranked below it
+    private static Node[] split(Node root, Node node) {
+        if (root == null) {
+            return new Node[2];
+        }
+
+        if (compare(root, node) < 0) {
+            Node[] split = split(root.right, node);
+            root.right = split[0];
+            root.updateSize();
+            split[0] = root;
+            return split;
+        }
+
+        Node[] split = split(root.left, node);
+        root.left = split[1];
+        root.updateSize();
+        split[1] = root;
+        return split;
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+
+        if (right == null) {
+            return left;
+        }
+
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.updateSize();
+            return left;
+        }
+
+        right.left = merge(left, right.left);
+        right.updateSize();
+        return right;
+    }
+
+    private static int compare(Node node1, Node node2) {
+        // Highest values are ranked first, with ties broken by id
+        int compare = Float.compare(node2.value, node1.value);
+        if (compare != 0) {
+            return compare;
+        }
+
+        return node1.id.compareTo(node2.id);
+    }
+
+    private static int size(@Nullable Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static final class Node {
+        private final UUID id;
+        private final float value;
+        private final int priority = ThreadLocalRandom.current().nextInt();
+
+        private Node left;
+        private Node right;
+        private int size = 1;
+
+        Node(UUID id, float value) {
+            this.id = id;
+            this.value = value;
+        }
+
+        void updateSize() {
+            this.size = 1 + Leaderboard.size(this.left) + Leaderboard.size(this.right);
+        }
+    }
+}
@@ -2,28 +2,43 @@ package org.battleplugins.tracker.stat;
 
 import org.battleplugins.tracker.Tracker;
 
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * Stores and holds tracker data for a player.
+ * <p>
+ * Records may be read and modified from any thread. Reads are
+ * optimistic, so they never wait on a write unless one happens
+ * at the same time, and {@link #snapshot()} can be used to get
+ * a consistent view of every stat at once.
  */
 public class Record {
     protected Tracker tracker;
     protected UUID id;
     protected String name;
-    protected final Map<StatType, Float> statistics;
+    protected final StatMap statistics;
+    private final BitSet dirtyStats = new BitSet();
+    private final StampedLock lock = new StampedLock();
     private boolean tracking = true;
+    private volatile boolean persisted;
+    private volatile RecordTransaction transaction;
 
     public Record(Tracker tracker, UUID id, String name, Map<StatType, Float> statistics) {
         this.tracker = tracker;
         this.id = id;
         this.name = name;
-        this.statistics = statistics;
+        this.statistics = statistics instanceof StatMap statMap ? statMap : new StatMap(statistics);
 
-        // Populate untracked records
-        this.setValue(StatType.KD_RATIO, this.getStat(StatType.KILLS) / Math.max(1, this.getStat(StatType.DEATHS)));
+        // Populate untracked records. This is derived from the loaded
+        // stats, so it does not count as a change to the record
+        this.statistics.putFloat(StatType.KD_RATIO, this.getStat(StatType.KILLS) / Math.max(1, this.getStat(StatType.DEATHS)));
     }
 
     /**
@@ -45,12 +60,34 @@ public class Record {
     }
 
     /**
-     * Returns the statistics of the record.
+     * Returns a read-only view of the statistics of the record.
+     * <p>
+     * The view is not safe to read while the record is being modified
+     * from another thread. Use {@link #snapshot()} or {@link #forEachStat}
+     * when this may be the case.
      *
      * @return the statistics of the record
      */
     public Map<StatType, Float> getStatistics() {
-        return Map.copyOf(this.statistics);
+        return Collections.unmodifiableMap(this.statistics);
+    }
+
+    /**
+     * Performs the given action for each stat in the record.
+     * <p>
+     * Unlike {@link #getStatistics()}, this does not box or copy the
+     * values of the stats. The stats are read under the lock of the
+     * record, so the action must not modify this record.
+     *
+     * @param consumer the action to perform
+     */
+    public void forEachStat(StatConsumer consumer) {
+        long stamp = this.lock.readLock();
+        try {
+            this.statistics.forEachStat(consumer);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -72,6 +109,25 @@ public class Record {
         this.tracking = tracking;
     }
 
+    /**
+     * Returns whether this record is stored in the database, either
+     * because it was loaded from it or has since been saved to it.
+     *
+     * @return whether this record is stored in the database
+     */
+    public boolean isPersisted() {
+        return this.persisted;
+    }
+
+    /**
+     * Sets whether this record is stored in the database.
+     *
+     * @param persisted whether this record is stored in the database
+     */
+    public void setPersisted(boolean persisted) {
+        this.persisted = persisted;
+    }
+
     /**
      * Returns if the {@link StatType} is in the record.
      *
@@ -79,7 +135,18 @@ public class Record {
      * @return if the StatType is in the record
      */
     public boolean hasStat(StatType stat) {
-        return this.statistics.containsKey(stat);
+        long stamp = this.lock.tryOptimisticRead();
+        boolean hasStat = this.statistics.has(stat);
+        if (this.lock.validate(stamp)) {
+            return hasStat;
+        }
+
+        stamp = this.lock.readLock();
+        try {
+            return this.statistics.has(stat);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -89,7 +156,18 @@ public class Record {
      * @return the value for the specified StatType
      */
     public float getStat(StatType stat) {
-        return this.statistics.getOrDefault(stat, 0.0f);
+        long stamp = this.lock.tryOptimisticRead();
+        float value = this.statistics.getFloat(stat);
+        if (this.lock.validate(stamp)) {
+            return value;
+        }
+
+        stamp = this.lock.readLock();
+        try {
+            return this.statistics.getFloat(stat);
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
     }
 
     /**
@@ -99,7 +177,62 @@ public class Record {
      * @param value the (new) value of the StatType
      */
     public void setValue(StatType stat, float value) {
-        this.statistics.put(stat, value);
+        long stamp = this.lock.writeLock();
+        try {
+            if (!this.statistics.putFloat(stat, value)) {
+                return;
+            }
+
+            this.dirtyStats.set(stat.getIndex());
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+
+        this.onChange(stat);
+    }
+
+    private void onChange(StatType stat) {
+        // Only changes made on the thread which opened the transaction
+        // are part of it, as it may be committed at any point otherwise
+        RecordTransaction transaction = this.transaction;
+        if (transaction != null && transaction.isOwnedByCurrentThread()) {
+            transaction.onChange(stat);
+        } else {
+            this.tracker.onRecordChange(this, List.of(stat));
+        }
+    }
+
+    /**
+     * Opens a {@link RecordTransaction} on this record. The tracker
+     * is notified of changes made to the record once the transaction
+     * is committed, rather than after each change.
+     * <p>
+     * Only one thread may have a transaction open on a record at a
+     * time. Changes made to the record from other threads while it
+     * is open are not part of the transaction.
+     *
+     * @return the transaction
+     * @throws IllegalStateException if another thread has a transaction open on this record
+     */
+    public synchronized RecordTransaction beginTransaction() {
+        RecordTransaction transaction = this.transaction;
+        if (transaction != null) {
+            if (!transaction.isOwnedByCurrentThread()) {
+                throw new IllegalStateException("A transaction is already open on the record of " + this.name + " on another thread!");
+            }
+
+            return transaction.join();
+        }
+
+        transaction = new RecordTransaction(this, Thread.currentThread());
+        this.transaction = transaction;
+        return transaction;
+    }
+
+    synchronized void endTransaction(RecordTransaction transaction) {
+        if (this.transaction == transaction) {
+            this.transaction = null;
+        }
     }
 
     /**
@@ -108,7 +241,15 @@ public class Record {
      * @param stat the stat to increment the value for
      */
     public void incrementValue(StatType stat) {
-        this.setValue(stat, this.getStat(stat) + 1);
+        long stamp = this.lock.writeLock();
+        try {
+            this.statistics.putFloat(stat, this.statistics.getFloat(stat) + 1);
+            this.dirtyStats.set(stat.getIndex());
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+
+        this.onChange(stat);
     }
 
     /**
@@ -117,7 +258,7 @@ public class Record {
      * @return the rating of the record
      */
     public float getRating() {
-        return this.statistics.get(StatType.RATING);
+        return this.getStat(StatType.RATING);
     }
 
     /**
@@ -126,7 +267,126 @@ public class Record {
      * @param rating the rating of the record
      */
     public void setRating(float rating) {
-        this.statistics.put(StatType.RATING, rating);
+        this.setValue(StatType.RATING, rating);
+    }
+
+    /**
+     * Returns whether the given {@link StatType} has changed
+     * since the record was last saved.
+     *
+     * @param stat the stat to check
+     * @return whether the given stat has changed
+     */
+    public boolean isDirty(StatType stat) {
+        long stamp = this.lock.readLock();
+        try {
+            return this.dirtyStats.get(stat.getIndex());
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns whether any of the given {@link StatType}s have
+     * changed since the record was last saved.
+     *
+     * @param stats the stats to check
+     * @return whether any of the given stats have changed
+     */
+    public boolean isDirty(Collection<StatType> stats) {
+        long stamp = this.lock.readLock();
+        try {
+            for (StatType stat : stats) {
+                if (this.dirtyStats.get(stat.getIndex())) {
+                    return true;
+                }
+            }
+
+            return false;
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Marks every stat in this record as changed, meaning the
+     * full record will be written on the next save.
+     */
+    public void markDirty() {
+        long stamp = this.lock.writeLock();
+        try {
+            this.dirtyStats.or(this.statistics.presentStats());
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Clears the changed stats of this record. This should
+     * be called once the record has been saved.
+     * <p>
+     * When saving, prefer {@link #snapshotAndClearDirty()} along
+     * with {@link #restoreDirty(Snapshot)} if the save fails.
+     */
+    public void clearDirty() {
+        long stamp = this.lock.writeLock();
+        try {
+            this.dirtyStats.clear();
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Returns a consistent snapshot of the stats of this record.
+     *
+     * @return a snapshot of this record
+     */
+    public Snapshot snapshot() {
+        long stamp = this.lock.readLock();
+        try {
+            return new Snapshot(this.id, this.name, this.statistics.copy(), (BitSet) this.dirtyStats.clone());
+        } finally {
+            this.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns a consistent snapshot of the stats of this record and
+     * clears its changed stats in the same step, so no change made
+     * concurrently can be lost. This should be used when saving the
+     * record.
+     * <p>
+     * If the save fails, {@link #restoreDirty(Snapshot)} must be
+     * called with the snapshot so its changes are saved again.
+     *
+     * @return a snapshot of this record
+     */
+    public Snapshot snapshotAndClearDirty() {
+        long stamp = this.lock.writeLock();
+        try {
+            Snapshot snapshot = new Snapshot(this.id, this.name, this.statistics.copy(), (BitSet) this.dirtyStats.clone());
+            this.dirtyStats.clear();
+            return snapshot;
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Marks the stats which were changed in the given snapshot as
+     * changed again, after saving the snapshot failed. Stats which
+     * changed since the snapshot was taken stay marked as changed.
+     *
+     * @param snapshot the snapshot which failed to save
+     */
+    public void restoreDirty(Snapshot snapshot) {
+        long stamp = this.lock.writeLock();
+        try {
+            this.dirtyStats.or(snapshot.dirtyStats());
+        } finally {
+            this.lock.unlockWrite(stamp);
+        }
     }
 
     @Override
@@ -141,4 +401,23 @@ public class Record {
     public int hashCode() {
         return Objects.hash(this.id);
     }
+
+    /**
+     * A point-in-time copy of the stats of a {@link Record}.
+     *
+     * @param id the ID of the record
+     * @param name the name of the record
+     * @param statistics the stats of the record
+     * @param dirtyStats the indices of the stats which had changed
+     */
+    public record Snapshot(UUID id, String name, StatMap statistics, BitSet dirtyStats) {
+
+        public float getStat(StatType stat) {
+            return this.statistics.getFloat(stat);
+        }
+
+        public boolean isDirty(StatType stat) {
+            return this.dirtyStats.get(stat.getIndex());
+        }
+    }
 }
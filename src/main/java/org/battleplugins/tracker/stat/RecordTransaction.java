@@ -0,0 +1,133 @@
+package org.battleplugins.tracker.stat;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A batch of changes to a {@link Record}.
+ * <p>
+ * While a transaction is open, changes made to the record, either
+ * through this transaction or directly on the record, are applied
+ * immediately but the tracker is only notified once, when the
+ * transaction is committed. Transactions are not thread-safe and
+ * must be used and committed on the thread they were opened on.
+ * <p>
+ * Opening a transaction on a record which already has one open
+ * joins the existing transaction, which is then only committed
+ * once every participant has committed.
+ */
+public final class RecordTransaction implements AutoCloseable {
+    private final Record record;
+    private final Thread owner;
+    private final BitSet changedStats = new BitSet();
+
+    private int depth = 1;
+
+    RecordTransaction(Record record, Thread owner) {
+        this.record = record;
+        this.owner = owner;
+    }
+
+    /**
+     * Returns the record this transaction modifies.
+     *
+     * @return the record this transaction modifies
+     */
+    public Record getRecord() {
+        return this.record;
+    }
+
+    /**
+     * Returns the current value of the given {@link StatType}.
+     *
+     * @param stat the stat to get the value of
+     * @return the value of the stat
+     */
+    public float getStat(StatType stat) {
+        return this.record.getStat(stat);
+    }
+
+    /**
+     * Sets the value of the given {@link StatType}.
+     *
+     * @param stat the stat to set the value for
+     * @param value the (new) value of the stat
+     * @return this transaction
+     */
+    public RecordTransaction setValue(StatType stat, float value) {
+        this.record.setValue(stat, value);
+        return this;
+    }
+
+    /**
+     * Increments the value of the given {@link StatType}.
+     *
+     * @param stat the stat to increment the value for
+     * @return this transaction
+     */
+    public RecordTransaction incrementValue(StatType stat) {
+        this.record.setValue(stat, this.record.getStat(stat) + 1);
+        return this;
+    }
+
+    /**
+     * Sets the value of the given {@link StatType} if it is
+     * higher than the current value.
+     *
+     * @param stat the stat to set the value for
+     * @param value the (new) value of the stat
+     * @return this transaction
+     */
+    public RecordTransaction setMax(StatType stat, float value) {
+        if (value > this.record.getStat(stat)) {
+            this.record.setValue(stat, value);
+        }
+
+        return this;
+    }
+
+    /**
+     * Commits this transaction, notifying the tracker of every
+     * stat which has changed since it was opened.
+     */
+    public void commit() {
+        if (!this.isOwnedByCurrentThread()) {
+            throw new IllegalStateException("Transactions must be committed on the thread they were opened on!");
+        }
+
+        if (this.depth <= 0 || --this.depth > 0) {
+            return;
+        }
+
+        this.record.endTransaction(this);
+        if (this.changedStats.isEmpty()) {
+            return;
+        }
+
+        List<StatType> stats = new ArrayList<>(this.changedStats.cardinality());
+        for (int i = this.changedStats.nextSetBit(0); i >= 0; i = this.changedStats.nextSetBit(i + 1)) {
+            stats.add(StatType.byIndex(i));
+        }
+
+        this.record.tracker.onRecordChange(this.record, stats);
+    }
+
+    @Override
+    public void close() {
+        this.commit();
+    }
+
+    RecordTransaction join() {
+        this.depth++;
+        return this;
+    }
+
+    boolean isOwnedByCurrentThread() {
+        return this.owner == Thread.currentThread();
+    }
+
+    void onChange(StatType stat) {
+        this.changedStats.set(stat.getIndex());
+    }
+}
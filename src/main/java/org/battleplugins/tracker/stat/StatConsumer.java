@@ -0,0 +1,10 @@
+package org.battleplugins.tracker.stat;
+
+/**
+ * Accepts a {@link StatType} and its value, without boxing the value.
+ */
+@FunctionalInterface
+public interface StatConsumer {
+
+    void accept(StatType statType, float value);
+}
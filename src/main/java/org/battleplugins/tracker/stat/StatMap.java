@@ -0,0 +1,254 @@
+package org.battleplugins.tracker.stat;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map of {@link StatType}s to their values, backed by a primitive
+ * array indexed by {@link StatType#getIndex()}.
+ * <p>
+ * The primitive accessors, {@link #getFloat(StatType)} and
+ * {@link #putFloat(StatType, float)}, do not box values, and should
+ * be preferred over the {@link Map} methods where possible. The
+ * backing arrays grow as new stat types are registered.
+ * <p>
+ * This class is not thread-safe, but reads racing with a write will
+ * never fail, they may only observe a stale value. This allows it to
+ * be read optimistically, as done by {@link Record}.
+ */
+public final class StatMap extends AbstractMap<StatType, Float> {
+    private float[] values;
+    private long[] present;
+
+    private Set<Entry<StatType, Float>> entrySet;
+
+    public StatMap() {
+        this.values = new float[StatType.count()];
+        this.present = new long[wordCount(this.values.length)];
+    }
+
+    private StatMap(StatMap other) {
+        this.values = other.values.clone();
+        this.present = other.present.clone();
+    }
+
+    public StatMap(Map<StatType, Float> statistics) {
+        this();
+
+        statistics.forEach(this::putFloat);
+    }
+
+    /**
+     * Returns whether a value is present for the given {@link StatType}.
+     *
+     * @param stat the stat to check
+     * @return whether a value is present for the stat
+     */
+    public boolean has(StatType stat) {
+        return this.isPresent(stat.getIndex());
+    }
+
+    /**
+     * Returns the value of the given {@link StatType}, or 0 if
+     * no value is present.
+     *
+     * @param stat the stat to get the value of
+     * @return the value of the stat
+     */
+    public float getFloat(StatType stat) {
+        int index = stat.getIndex();
+        float[] values = this.values;
+        return this.isPresent(index) && index < values.length ? values[index] : 0;
+    }
+
+    /**
+     * Sets the value of the given {@link StatType}.
+     *
+     * @param stat the stat to set the value of
+     * @param value the value of the stat
+     * @return whether the value was changed
+     */
+    public boolean putFloat(StatType stat, float value) {
+        int index = stat.getIndex();
+        if (index >= this.values.length) {
+            int length = Math.max(index + 1, StatType.count());
+            this.values = Arrays.copyOf(this.values, length);
+            this.present = Arrays.copyOf(this.present, wordCount(length));
+        }
+
+        boolean changed = !this.isPresent(index) || Float.compare(this.values[index], value) != 0;
+        this.values[index] = value;
+        this.present[index >>> 6] |= 1L << index;
+        return changed;
+    }
+
+    /**
+     * Performs the given action for each stat which has a value present,
+     * in the order of their indices.
+     *
+     * @param consumer the action to perform
+     */
+    public void forEachStat(StatConsumer consumer) {
+        for (int i = this.nextPresent(0); i >= 0; i = this.nextPresent(i + 1)) {
+            consumer.accept(StatType.byIndex(i), this.values[i]);
+        }
+    }
+
+    /**
+     * Returns a copy of this map.
+     *
+     * @return a copy of this map
+     */
+    public StatMap copy() {
+        return new StatMap(this);
+    }
+
+    /**
+     * Returns the indices of the stats which have a value present.
+     * <p>
+     * The returned set is a copy, and is not updated as stats
+     * are added or removed.
+     *
+     * @return the indices of the stats with a value present
+     */
+    public BitSet presentStats() {
+        return BitSet.valueOf(this.present);
+    }
+
+    @Override
+    public Float get(Object key) {
+        if (key instanceof StatType stat && this.has(stat)) {
+            return this.values[stat.getIndex()];
+        }
+
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof StatType stat && this.has(stat);
+    }
+
+    @Override
+    public Float put(StatType key, Float value) {
+        Float oldValue = this.get(key);
+        this.putFloat(key, value);
+        return oldValue;
+    }
+
+    @Override
+    public Float remove(Object key) {
+        Float oldValue = this.get(key);
+        if (oldValue != null) {
+            this.clearPresent(((StatType) key).getIndex());
+        }
+
+        return oldValue;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (long word : this.present) {
+            size += Long.bitCount(word);
+        }
+
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.present, 0);
+    }
+
+    @Override
+    public Set<Entry<StatType, Float>> entrySet() {
+        if (this.entrySet == null) {
+            this.entrySet = new EntrySet();
+        }
+
+        return this.entrySet;
+    }
+
+    private boolean isPresent(int index) {
+        long[] present = this.present;
+        int word = index >>> 6;
+        return word < present.length && (present[word] & (1L << index)) != 0;
+    }
+
+    private void clearPresent(int index) {
+        this.present[index >>> 6] &= ~(1L << index);
+    }
+
+    private int nextPresent(int fromIndex) {
+        int word = fromIndex >>> 6;
+        if (word >= this.present.length) {
+            return -1;
+        }
+
+        long bits = this.present[word] & (-1L << fromIndex);
+        while (true) {
+            if (bits != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(bits);
+            }
+
+            if (++word >= this.present.length) {
+                return -1;
+            }
+
+            bits = this.present[word];
+        }
+    }
+
+    private static int wordCount(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<StatType, Float>> {
+
+        @Override
+        public Iterator<Entry<StatType, Float>> iterator() {
+            return new Iterator<>() {
+                private int next = StatMap.this.nextPresent(0);
+                private int last = -1;
+
+                @Override
+                public boolean hasNext() {
+                    return this.next >= 0;
+                }
+
+                @Override
+                public Entry<StatType, Float> next() {
+                    if (this.next < 0) {
+                        throw new NoSuchElementException();
+                    }
+
+                    this.last = this.next;
+                    this.next = StatMap.this.nextPresent(this.next + 1);
+                    return new SimpleImmutableEntry<>(StatType.byIndex(this.last), StatMap.this.values[this.last]);
+                }
+
+                @Override
+                public void remove() {
+                    if (this.last < 0) {
+                        throw new IllegalStateException();
+                    }
+
+                    StatMap.this.clearPresent(this.last);
+                    this.last = -1;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return StatMap.this.size();
+        }
+    }
+}
@@ -2,15 +2,22 @@ package org.battleplugins.tracker.stat;
 
 import org.jetbrains.annotations.Nullable;
 
-import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Represents a statistic type.
+ * <p>
+ * Stat types may be registered from any thread. Registration is
+ * synchronized, and the types are then published through a volatile
+ * array so they can be looked up by index without locking.
  */
 public final class StatType {
-    private static final Map<String, StatType> STAT_TYPES = new LinkedHashMap<>();
+    private static final Object REGISTRATION_LOCK = new Object();
+    private static final Map<String, StatType> STAT_TYPES = new ConcurrentHashMap<>();
+    private static volatile StatType[] statTypesByIndex = new StatType[0];
 
     public static StatType KILLS = new StatType("kills", "Kills", true);
     public static StatType DEATHS = new StatType("deaths", "Deaths", true);
@@ -27,13 +34,23 @@ public final class StatType {
     private final String key;
     private final String name;
     private final boolean tracked;
+    private final int index;
 
     StatType(String key, String name, boolean tracked) {
-        this.key = key;
-        this.name = name;
-        this.tracked = tracked;
+        synchronized (REGISTRATION_LOCK) {
+            this.key = key;
+            this.name = name;
+            this.tracked = tracked;
 
-        STAT_TYPES.put(key, this);
+            StatType[] statTypes = statTypesByIndex;
+            this.index = statTypes.length;
+
+            StatType[] newStatTypes = Arrays.copyOf(statTypes, statTypes.length + 1);
+            newStatTypes[this.index] = this;
+
+            STAT_TYPES.put(key, this);
+            statTypesByIndex = newStatTypes;
+        }
     }
 
     public String getKey() {
@@ -48,17 +65,37 @@ public final class StatType {
         return this.tracked;
     }
 
+    /**
+     * Returns the index of this stat type. Indices are assigned
+     * densely in registration order, starting at 0.
+     *
+     * @return the index of this stat type
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
     @Nullable
     public static StatType get(String name) {
         return STAT_TYPES.get(name);
     }
 
+    public static StatType byIndex(int index) {
+        return statTypesByIndex[index];
+    }
+
+    public static int count() {
+        return statTypesByIndex.length;
+    }
+
     public static StatType create(String key, String name, boolean tracked) {
-        if (STAT_TYPES.containsKey(key)) {
-            throw new IllegalArgumentException("Stat type with key " + key + " already exists!");
-        }
+        synchronized (REGISTRATION_LOCK) {
+            if (STAT_TYPES.containsKey(key)) {
+                throw new IllegalArgumentException("Stat type with key " + key + " already exists!");
+            }
 
-        return new StatType(key, name, tracked);
+            return new StatType(key, name, tracked);
+        }
     }
 
     @Override
@@ -75,7 +112,7 @@ public final class StatType {
     }
 
     public static List<StatType> values() {
-        // Need to ensure the order is retained
-        return STAT_TYPES.values().stream().toList();
+        // Indices are assigned in registration order, so this retains the order
+        return List.of(statTypesByIndex);
     }
 }
@@ -0,0 +1,135 @@
+package org.battleplugins.tracker.stat;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A cursor over the tally entries of a player, from the most
+ * recent to the oldest.
+ * <p>
+ * Entries are only fetched a page at a time as {@link #next()} is
+ * called, so a long history is never loaded in full. Entries which
+ * were recorded since the tracker last saved may not be included.
+ */
+public final class TallyHistory {
+    private final PageLoader loader;
+    private final int pageSize;
+
+    // Entries at the timestamp of the last page's oldest entry, as
+    // entries sharing a timestamp may be split across pages
+    private final Set<TallyEntry> boundaryEntries = new HashSet<>();
+    @Nullable
+    private Instant boundary;
+    private boolean exhausted;
+
+    private CompletableFuture<List<TallyEntry>> previous = CompletableFuture.completedFuture(List.of());
+
+    public TallyHistory(PageLoader loader, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive!");
+        }
+
+        this.loader = loader;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns whether there may be more entries in the history.
+     * <p>
+     * If true, the next page may still be empty.
+     *
+     * @return whether there may be more entries
+     */
+    public synchronized boolean hasNext() {
+        return !this.exhausted;
+    }
+
+    /**
+     * Fetches the next page of entries.
+     * <p>
+     * Pages are fetched in order, even if the next page is
+     * requested before the previous one has completed.
+     *
+     * @return the next page of entries, or an empty list if
+     *         there are no more entries
+     */
+    public synchronized CompletableFuture<List<TallyEntry>> next() {
+        CompletableFuture<List<TallyEntry>> page = this.previous
+                .exceptionally(e -> List.of())
+                .thenCompose(previous -> this.fetch());
+
+        this.previous = page;
+        return page;
+    }
+
+    private synchronized CompletableFuture<List<TallyEntry>> fetch() {
+        if (this.exhausted) {
+            return CompletableFuture.completedFuture(List.of());
+        }
+
+        // Entries at the boundary are loaded again, so load
+        // enough to still fill the page after skipping them
+        int limit = this.pageSize + this.boundaryEntries.size();
+        return this.loader.load(this.boundary, limit).thenApply(entries -> this.advance(entries, limit));
+    }
+
+    private synchronized List<TallyEntry> advance(List<TallyEntry> entries, int limit) {
+        if (entries.size() < limit) {
+            this.exhausted = true;
+        }
+
+        List<TallyEntry> page = new ArrayList<>(Math.min(entries.size(), this.pageSize));
+        for (TallyEntry entry : entries) {
+            if (page.size() >= this.pageSize) {
+                this.exhausted = false;
+                break;
+            }
+
+            if (!this.boundaryEntries.contains(entry)) {
+                page.add(entry);
+            }
+        }
+
+        if (page.isEmpty()) {
+            return page;
+        }
+
+        Instant oldest = page.get(page.size() - 1).timestamp();
+        if (!oldest.equals(this.boundary)) {
+            this.boundaryEntries.clear();
+            this.boundary = oldest;
+        }
+
+        for (TallyEntry entry : page) {
+            if (entry.timestamp().equals(oldest)) {
+                this.boundaryEntries.add(entry);
+            }
+        }
+
+        return page;
+    }
+
+    /**
+     * Loads a page of tally entries.
+     */
+    @FunctionalInterface
+    public interface PageLoader {
+
+        /**
+         * Loads the most recent entries recorded at or before
+         * the given time, ordered from the most recent.
+         *
+         * @param before the time to load entries at or before, or null
+         *               to load the most recent entries
+         * @param limit the maximum amount of entries to load
+         * @return the loaded entries
+         */
+        CompletableFuture<List<TallyEntry>> load(@Nullable Instant before, int limit);
+    }
+}
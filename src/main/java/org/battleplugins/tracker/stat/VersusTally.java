@@ -17,18 +17,53 @@ import java.util.UUID;
  */
 public record VersusTally(Tracker tracker, UUID id1, UUID id2, Map<StatType, Float> statistics) {
 
+    public VersusTally {
+        if (!(statistics instanceof StatMap)) {
+            statistics = new StatMap(statistics);
+        }
+    }
+
     public VersusTally(Tracker tracker, OfflinePlayer player1, OfflinePlayer player2, Map<StatType, Float> statistics) {
         this(tracker, player1.getUniqueId(), player2.getUniqueId(), statistics);
     }
 
     public float getStat(StatType statType) {
-        return this.statistics.getOrDefault(statType, 0.0F);
+        return ((StatMap) this.statistics).getFloat(statType);
+    }
+
+    /**
+     * Sets the value of the given {@link StatType}.
+     *
+     * @param statType the stat to set the value for
+     * @param value the value of the stat
+     * @return whether the value was changed
+     */
+    public boolean setStat(StatType statType, float value) {
+        return ((StatMap) this.statistics).putFloat(statType, value);
+    }
+
+    /**
+     * Performs the given action for each stat in the tally.
+     *
+     * @param consumer the action to perform
+     */
+    public void forEachStat(StatConsumer consumer) {
+        ((StatMap) this.statistics).forEachStat(consumer);
     }
 
     public boolean isTallyFor(UUID uuid1, UUID uuid2) {
         return (this.id1.equals(uuid1) && this.id2.equals(uuid2)) || (this.id1.equals(uuid2) && this.id2.equals(uuid1));
     }
 
+    /**
+     * Returns the {@link Key} identifying this tally.
+     *
+     * @return the key identifying this tally
+     */
+    public Key key() {
+        return Key.of(this.id1, this.id2);
+    }
+
     @Override
     public boolean equals(Object object) {
         if (this == object) return true;
@@ -41,4 +76,20 @@ public record VersusTally(Tracker tracker, UUID id1, UUID id2, Map<StatType, Flo
     public int hashCode() {
         return Objects.hash(this.id1, this.id2);
     }
-}
\ No newline at end of file
+
+    /**
+     * An unordered pair of player UUIDs identifying a tally.
+     * <p>
+     * Keys are normalized on creation, meaning the key for
+     * (uuid1, uuid2) is equal to the key for (uuid2, uuid1).
+     *
+     * @param first the lower of the two UUIDs
+     * @param second the higher of the two UUIDs
+     */
+    public record Key(UUID first, UUID second) {
+
+        public static Key of(UUID uuid1, UUID uuid2) {
+            return uuid1.compareTo(uuid2) <= 0 ? new Key(uuid1, uuid2) : new Key(uuid2, uuid1);
+        }
+    }
+}
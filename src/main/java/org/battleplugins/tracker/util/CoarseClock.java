@@ -0,0 +1,69 @@
+package org.battleplugins.tracker.util;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock with a resolution of one server tick, which can be read
+ * without a system call.
+ * <p>
+ * While running, the current time is updated by a background thread
+ * every {@value #TICK_INTERVAL} milliseconds, and reading it is a single
+ * volatile read. This is intended for timestamps on hot paths, such as
+ * cache access times, where millisecond precision is not needed. When
+ * not running, the system clock is read instead.
+ */
+public final class CoarseClock {
+    private static final long TICK_INTERVAL = 50;
+    private static final long STOPPED = Long.MIN_VALUE;
+
+    private static volatile long now = STOPPED;
+    private static ScheduledExecutorService ticker;
+
+    private CoarseClock() {
+    }
+
+    /**
+     * Returns the current time in milliseconds.
+     *
+     * @return the current time in milliseconds
+     * @see System#currentTimeMillis()
+     */
+    public static long now() {
+        long time = now;
+        return time != STOPPED ? time : System.currentTimeMillis();
+    }
+
+    /**
+     * Starts updating the clock, if it is not already running.
+     */
+    public static synchronized void start() {
+        if (ticker != null) {
+            return;
+        }
+
+        now = System.currentTimeMillis();
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "BattleTracker Clock");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ticker.scheduleAtFixedRate(() -> now = System.currentTimeMillis(), TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops updating the clock. The system clock is read
+     * until it is started again.
+     */
+    public static synchronized void stop() {
+        if (ticker == null) {
+            return;
+        }
+
+        ticker.shutdownNow();
+        ticker = null;
+        now = STOPPED;
+    }
+}
@@ -8,7 +8,6 @@ import org.bukkit.command.CommandSender;
 
 import java.text.DecimalFormat;
 import java.time.Duration;
-import java.util.AbstractMap;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -33,15 +32,14 @@ public final class Util {
     }
 
     public static void sendTrackerMessage(CommandSender sender, String messageKey, int ranking, Record record) {
-        Map<String, Object> replacements = new HashMap<>(StatType.values()
-                .stream()
-                .map(stat -> new AbstractMap.SimpleEntry<>(stat, record.getStat(stat)))
-                .collect(
-                        LinkedHashMap::new,
-                        (map, entry) -> map.put(entry.getKey().getKey(), STAT_FORMAT.format(entry.getValue())),
-                        Map::putAll
-                )
-        );
+        Map<String, Object> replacements = new HashMap<>();
+
+        // Stats which the record does not have are displayed as 0
+        for (StatType stat : StatType.values()) {
+            replacements.put(stat.getKey(), STAT_FORMAT.format(0));
+        }
+
+        record.forEachStat((stat, value) -> replacements.put(stat.getKey(), STAT_FORMAT.format(value)));
 
         replacements.put("ranking", ranking);
         replacements.put("player", record.getName());